@@ -0,0 +1,150 @@
+package info.cartograph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes the numeric columns of a dataset as little-endian binary files
+ * that can be loaded directly with numpy.memmap:
+ *
+ * - index.i32: the dense index of each row.
+ * - vectors.f32: a rows x dimensions float32 matrix. With a quantized
+ *   VectorQuantizer.Type this is vectors.f16 (float16) or vectors.i8 (int8).
+ *   For int8, vector_scales.f32 holds the scale of each row.
+ * - popularity.f64: the popularity of each row.
+ * - links_offsets.i64 and links_targets.i32: outgoing links in CSR form.
+ *   The links of row i are targets[offsets[i]:offsets[i+1]], given as dense indices.
+ *
+ * A manifest.json file describes the dtype and shape of each file. For
+ * quantized vectors it also reports the mean and minimum cosine similarity
+ * between original and quantized rows.
+ * Rows must be written in the same order as links.
+ *
+ * @author Shilad Sen
+ */
+public class BinaryDatasetWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(BinaryDatasetWriter.class);
+    private final File outputDir;
+    private final DataOutputStream index;
+    private final DataOutputStream vectors;
+    private final DataOutputStream scales;
+    private final VectorQuantizer quantizer;
+    private final DataOutputStream popularity;
+    private final DataOutputStream linkOffsets;
+    private final DataOutputStream linkTargets;
+    private ByteBuffer buffer = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+    private byte[] encoded = new byte[0];
+
+    private int numRows = 0;
+    private int numLinkRows = 0;
+    private long numLinks = 0;
+    private int dimensions = -1;
+
+    public BinaryDatasetWriter(File outputDir) throws IOException {
+        this(outputDir, VectorQuantizer.Type.FLOAT32);
+    }
+
+    public BinaryDatasetWriter(File outputDir, VectorQuantizer.Type type) throws IOException {
+        if (!outputDir.isDirectory()) outputDir.mkdirs();
+        this.outputDir = outputDir;
+        this.quantizer = new VectorQuantizer(type);
+        index = open("index.i32");
+        vectors = open(getVectorFileName());
+        scales = (type == VectorQuantizer.Type.INT8) ? open("vector_scales.f32") : null;
+        popularity = open("popularity.f64");
+        linkOffsets = open("links_offsets.i64");
+        linkTargets = open("links_targets.i32");
+        linkOffsets.writeLong(Long.reverseBytes(0));
+    }
+
+    private DataOutputStream open(String name) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(outputDir, name))));
+    }
+
+    public void writeRow(int denseIndex, float[] vector, double pop) throws IOException {
+        if (dimensions < 0) {
+            dimensions = vector.length;
+        } else if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Expected vector of length " + dimensions + ", found " + vector.length);
+        }
+        index.writeInt(Integer.reverseBytes(denseIndex));
+        popularity.writeLong(Long.reverseBytes(Double.doubleToLongBits(pop)));
+        int length = quantizer.getType().getBytesPerValue() * vector.length;
+        if (encoded.length < length) {
+            encoded = new byte[length];
+        }
+        float scale = quantizer.encode(vector, encoded);
+        vectors.write(encoded, 0, length);
+        if (scales != null) {
+            scales.writeInt(Integer.reverseBytes(Float.floatToIntBits(scale)));
+        }
+        numRows++;
+    }
+
+    /**
+     * Writes the dense indices of the pages linked to by the next row.
+     */
+    public void writeLinks(int[] targets) throws IOException {
+        ensureCapacity(4 * targets.length);
+        buffer.asIntBuffer().put(targets);
+        linkTargets.write(buffer.array(), 0, 4 * targets.length);
+        numLinks += targets.length;
+        linkOffsets.writeLong(Long.reverseBytes(numLinks));
+        numLinkRows++;
+    }
+
+    private String getVectorFileName() {
+        return "vectors." + quantizer.getType().getExtension();
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (buffer.capacity() < bytes) {
+            buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        buffer.clear();
+    }
+
+    public void close() throws IOException {
+        index.close();
+        vectors.close();
+        if (scales != null) scales.close();
+        popularity.close();
+        linkOffsets.close();
+        linkTargets.close();
+        if (numLinkRows != numRows) {
+            throw new IllegalStateException("Wrote links for " + numLinkRows + " of " + numRows + " rows");
+        }
+
+        BufferedWriter w = new BufferedWriter(new FileWriter(new File(outputDir, "manifest.json")));
+        w.write("{\n");
+        w.write("  \"rows\": " + numRows + ",\n");
+        w.write("  \"dimensions\": " + Math.max(dimensions, 0) + ",\n");
+        if (quantizer.getType() != VectorQuantizer.Type.FLOAT32) {
+            w.write("  \"quantization\": {\"type\": \"" + quantizer.getType().name().toLowerCase() + "\"" +
+                    ", \"mean_cosine\": " + quantizer.getMeanCosine() +
+                    ", \"min_cosine\": " + quantizer.getMinCosine() + "},\n");
+            LOG.info("Quantized {} rows to {}: mean cosine similarity {}, minimum {}",
+                    numRows, quantizer.getType(), quantizer.getMeanCosine(), quantizer.getMinCosine());
+        }
+        w.write("  \"files\": {\n");
+        w.write(describe("index", "index.i32", "<i4", "[" + numRows + "]") + ",\n");
+        w.write(describe("vectors", getVectorFileName(), quantizer.getType().getDtype(), "[" + numRows + ", " + Math.max(dimensions, 0) + "]") + ",\n");
+        if (scales != null) {
+            w.write(describe("vector_scales", "vector_scales.f32", "<f4", "[" + numRows + "]") + ",\n");
+        }
+        w.write(describe("popularity", "popularity.f64", "<f8", "[" + numRows + "]") + ",\n");
+        w.write(describe("links_offsets", "links_offsets.i64", "<i8", "[" + (numRows + 1) + "]") + ",\n");
+        w.write(describe("links_targets", "links_targets.i32", "<i4", "[" + numLinks + "]") + "\n");
+        w.write("  }\n");
+        w.write("}\n");
+        w.close();
+    }
+
+    private static String describe(String name, String path, String dtype, String shape) {
+        return "    \"" + name + "\": {\"path\": \"" + path + "\", \"dtype\": \"" + dtype + "\", \"shape\": " + shape + "}";
+    }
+}
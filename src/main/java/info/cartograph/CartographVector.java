@@ -1,33 +1,63 @@
 package info.cartograph;
 
 /**
+ * A vector for a single page along with its name, popularity and outgoing links.
+ *
+ * Page ids and link targets are stored as primitive ints. The String
+ * constructor and getters are adapters for callers that still use
+ * string ids; they must be numeric.
+ *
  * @author Shilad Sen
  */
 public class CartographVector {
     private final String name;
-    private final String id;
-    private final String[] linkIds;
+    private final int id;
+    private final int[] links;
     private final float[] vector;
     private final double popularity;
 
-    public CartographVector(String name, String id, String[] linkIds, float[] vector, double popularity) {
+    public CartographVector(String name, int id, int[] links, float[] vector, double popularity) {
         this.name = name;
         this.id = id;
-        this.linkIds = linkIds;
+        this.links = links;
         this.vector = vector;
         this.popularity = popularity;
     }
 
+    public CartographVector(String name, String id, String[] linkIds, float[] vector, double popularity) {
+        this(name, Integer.valueOf(id), parseIds(linkIds), vector, popularity);
+    }
+
+    private static int[] parseIds(String[] ids) {
+        int result[] = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            result[i] = Integer.valueOf(ids[i]);
+        }
+        return result;
+    }
+
     public String getName() {
         return name;
     }
 
-    public String getId() {
+    public int getIntId() {
         return id;
     }
 
+    public String getId() {
+        return "" + id;
+    }
+
+    public int[] getLinks() {
+        return links;
+    }
+
     public String[] getLinkIds() {
-        return linkIds;
+        String result[] = new String[links.length];
+        for (int i = 0; i < links.length; i++) {
+            result[i] = "" + links[i];
+        }
+        return result;
     }
 
     public float[] getVector() {
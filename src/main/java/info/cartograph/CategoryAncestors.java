@@ -0,0 +1,299 @@
+package info.cartograph;
+
+import org.wikibrain.core.model.CategoryGraph;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * The ancestors of every category in a category graph. A category's
+ * ancestors are the category itself plus every category reachable by
+ * following parent links whose cost is at least the child's cost.
+ *
+ * Categories joined by equal cost cycles share the same ancestors, so the
+ * graph is first collapsed into strongly connected components with an
+ * iterative version of Tarjan's algorithm. Tarjan's algorithm finishes
+ * every component after all the components it can reach. Each component's
+ * closure is the union of its own members and the closures of its parent
+ * components. Components are grouped into layers by their height in the
+ * component DAG, and each layer is computed in parallel.
+ *
+ * Closures are stored per component in CSR form: the sorted ancestors of
+ * component c are members[offsets[c]:offsets[c+1]].
+ *
+ * Created by Shilad Sen
+ */
+public class CategoryAncestors {
+    public static final Logger LOG = Logger.getLogger(CategoryAncestors.class.getName());
+
+    private final int[] components;
+    private final int[] offsets;
+    private final int[] members;
+
+    private CategoryAncestors(int[] components, int[] offsets, int[] members) {
+        this.components = components;
+        this.offsets = offsets;
+        this.members = members;
+    }
+
+    public static CategoryAncestors build(CategoryGraph graph, int numThreads) {
+        final int n = graph.catParents.length;
+
+        // Parent links that do not decrease the cost, in CSR form
+        int edgeOffsets[] = new int[n + 1];
+        for (int c = 0; c < n; c++) {
+            for (int p : graph.catParents[c]) {
+                if (graph.catCosts[p] >= graph.catCosts[c]) {
+                    edgeOffsets[c + 1]++;
+                }
+            }
+        }
+        for (int c = 0; c < n; c++) {
+            edgeOffsets[c + 1] += edgeOffsets[c];
+        }
+        int edges[] = new int[edgeOffsets[n]];
+        for (int c = 0, e = 0; c < n; c++) {
+            for (int p : graph.catParents[c]) {
+                if (graph.catCosts[p] >= graph.catCosts[c]) {
+                    edges[e++] = p;
+                }
+            }
+        }
+        LOG.info("finding strongly connected components among " + n + " categories and " + edges.length + " parent links");
+
+        int component[] = tarjan(n, edgeOffsets, edges);
+        int numComponents = 0;
+        for (int c : component) {
+            numComponents = Math.max(numComponents, c + 1);
+        }
+
+        // Members of each component, in CSR form
+        int memberOffsets[] = new int[numComponents + 1];
+        for (int c = 0; c < n; c++) {
+            memberOffsets[component[c] + 1]++;
+        }
+        for (int i = 0; i < numComponents; i++) {
+            memberOffsets[i + 1] += memberOffsets[i];
+        }
+        int componentMembers[] = new int[n];
+        int next[] = Arrays.copyOf(memberOffsets, numComponents);
+        for (int c = 0; c < n; c++) {
+            componentMembers[next[component[c]]++] = c;
+        }
+
+        // Distinct parent components of each component, in CSR form
+        int stamp[] = new int[numComponents];
+        Arrays.fill(stamp, -1);
+        int dagOffsets[] = new int[numComponents + 1];
+        int dag[] = new int[edges.length];
+        int numDagEdges = 0;
+        for (int comp = 0; comp < numComponents; comp++) {
+            stamp[comp] = comp;
+            for (int i = memberOffsets[comp]; i < memberOffsets[comp + 1]; i++) {
+                int c = componentMembers[i];
+                for (int e = edgeOffsets[c]; e < edgeOffsets[c + 1]; e++) {
+                    int parent = component[edges[e]];
+                    if (stamp[parent] != comp) {
+                        stamp[parent] = comp;
+                        dag[numDagEdges++] = parent;
+                    }
+                }
+            }
+            dagOffsets[comp + 1] = numDagEdges;
+        }
+        edges = null;
+
+        // Tarjan numbers parent components before children, so heights can be computed in order
+        int height[] = new int[numComponents];
+        int numLayers = 0;
+        for (int comp = 0; comp < numComponents; comp++) {
+            for (int i = dagOffsets[comp]; i < dagOffsets[comp + 1]; i++) {
+                height[comp] = Math.max(height[comp], height[dag[i]] + 1);
+            }
+            numLayers = Math.max(numLayers, height[comp] + 1);
+        }
+        int layerOffsets[] = new int[numLayers + 1];
+        for (int h : height) {
+            layerOffsets[h + 1]++;
+        }
+        for (int i = 0; i < numLayers; i++) {
+            layerOffsets[i + 1] += layerOffsets[i];
+        }
+        int layers[] = new int[numComponents];
+        next = Arrays.copyOf(layerOffsets, numLayers);
+        for (int comp = 0; comp < numComponents; comp++) {
+            layers[next[height[comp]]++] = comp;
+        }
+        LOG.info("computing closures of " + numComponents + " components in " + numLayers + " layers");
+
+        final int closures[][] = new int[numComponents][];
+        final ThreadLocal<int[]> seen = new ThreadLocal<int[]>();
+        final ThreadLocal<int[]> seenStamp = new ThreadLocal<int[]>();
+        for (int layer = 0; layer < numLayers; layer++) {
+            final int[] fDag = dag, fDagOffsets = dagOffsets, fLayers = layers;
+            final int[] fMembers = componentMembers, fMemberOffsets = memberOffsets;
+            final int start = layerOffsets[layer];
+            ParallelForEach.range(start, layerOffsets[layer + 1], numThreads, new Procedure<Integer>() {
+                public void call(Integer i) throws Exception {
+                    int comp = fLayers[i];
+                    int marks[] = seen.get();
+                    int stamps[] = seenStamp.get();
+                    if (marks == null) {
+                        marks = new int[n];
+                        stamps = new int[] { 0 };
+                        seen.set(marks);
+                        seenStamp.set(stamps);
+                    }
+                    int s = ++stamps[0];
+
+                    int size = fMemberOffsets[comp + 1] - fMemberOffsets[comp];
+                    for (int j = fDagOffsets[comp]; j < fDagOffsets[comp + 1]; j++) {
+                        size += closures[fDag[j]].length;
+                    }
+                    int closure[] = new int[size];
+                    int k = 0;
+                    for (int j = fMemberOffsets[comp]; j < fMemberOffsets[comp + 1]; j++) {
+                        int c = fMembers[j];
+                        if (marks[c] != s) {
+                            marks[c] = s;
+                            closure[k++] = c;
+                        }
+                    }
+                    for (int j = fDagOffsets[comp]; j < fDagOffsets[comp + 1]; j++) {
+                        for (int c : closures[fDag[j]]) {
+                            if (marks[c] != s) {
+                                marks[c] = s;
+                                closure[k++] = c;
+                            }
+                        }
+                    }
+                    closure = Arrays.copyOf(closure, k);
+                    Arrays.sort(closure);
+                    closures[comp] = closure;
+                }
+            });
+        }
+
+        // Pack the closures into CSR form
+        long total = 0;
+        for (int closure[] : closures) {
+            total += closure.length;
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many ancestors to pack: " + total);
+        }
+        int offsets[] = new int[numComponents + 1];
+        int packed[] = new int[(int) total];
+        for (int comp = 0; comp < numComponents; comp++) {
+            System.arraycopy(closures[comp], 0, packed, offsets[comp], closures[comp].length);
+            offsets[comp + 1] = offsets[comp] + closures[comp].length;
+            closures[comp] = null;
+        }
+        LOG.info("computed " + total + " ancestors for " + n + " categories");
+        return new CategoryAncestors(component, offsets, packed);
+    }
+
+    /**
+     * Labels strongly connected components with an iterative Tarjan's algorithm.
+     * Components are numbered in the order they are completed, so every
+     * component reachable from a component has a lower number.
+     */
+    static int[] tarjan(int n, int[] edgeOffsets, int[] edges) {
+        int component[] = new int[n];
+        int index[] = new int[n];
+        int low[] = new int[n];
+        boolean onStack[] = new boolean[n];
+        int stack[] = new int[n];
+        int callStack[] = new int[n];
+        int edgePos[] = new int[n];
+        Arrays.fill(index, -1);
+        int nextIndex = 0, stackSize = 0, numComponents = 0;
+
+        for (int root = 0; root < n; root++) {
+            if (index[root] >= 0) {
+                continue;
+            }
+            int depth = 0;
+            callStack[depth++] = root;
+            edgePos[root] = edgeOffsets[root];
+            index[root] = low[root] = nextIndex++;
+            stack[stackSize++] = root;
+            onStack[root] = true;
+
+            while (depth > 0) {
+                int v = callStack[depth - 1];
+                if (edgePos[v] < edgeOffsets[v + 1]) {
+                    int w = edges[edgePos[v]++];
+                    if (index[w] < 0) {
+                        index[w] = low[w] = nextIndex++;
+                        stack[stackSize++] = w;
+                        onStack[w] = true;
+                        edgePos[w] = edgeOffsets[w];
+                        callStack[depth++] = w;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], index[w]);
+                    }
+                } else {
+                    depth--;
+                    if (low[v] == index[v]) {
+                        int w;
+                        do {
+                            w = stack[--stackSize];
+                            onStack[w] = false;
+                            component[w] = numComponents;
+                        } while (w != v);
+                        numComponents++;
+                    }
+                    if (depth > 0) {
+                        int u = callStack[depth - 1];
+                        low[u] = Math.min(low[u], low[v]);
+                    }
+                }
+            }
+        }
+        return component;
+    }
+
+    public int getNumCategories() {
+        return components.length;
+    }
+
+    /**
+     * Returns the sorted ancestors of a category, including the category itself.
+     */
+    public int[] get(int catIndex) {
+        int comp = components[catIndex];
+        return Arrays.copyOfRange(members, offsets[comp], offsets[comp + 1]);
+    }
+
+    /**
+     * Returns the component of a category. Categories in the same component
+     * have the same ancestors.
+     */
+    public int getComponent(int catIndex) {
+        return components[catIndex];
+    }
+
+    /**
+     * The ancestors of a component start at this position in getMembers().
+     */
+    public int getStart(int component) {
+        return offsets[component];
+    }
+
+    /**
+     * The ancestors of a component end before this position in getMembers().
+     */
+    public int getEnd(int component) {
+        return offsets[component + 1];
+    }
+
+    /**
+     * Returns the packed ancestor array shared by all components. Do not modify it.
+     */
+    public int[] getMembers() {
+        return members;
+    }
+}
@@ -5,7 +5,6 @@ import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.cli.*;
-import org.apache.commons.collections.IteratorUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikibrain.conf.ConfigurationException;
@@ -15,19 +14,29 @@ import org.wikibrain.core.cmd.EnvBuilder;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalCategoryMemberDao;
 import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.MetaInfoDao;
 import org.wikibrain.core.dao.UniversalPageDao;
 import org.wikibrain.core.dao.sql.CategoryBfs;
+import org.wikibrain.core.dao.sql.SqlCache;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LocalId;
 import org.wikibrain.core.model.CategoryGraph;
+import org.wikibrain.core.model.LocalCategoryMember;
+import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.UniversalPage;
 import org.wikibrain.sr.SRMetric;
 import org.wikibrain.sr.vector.DenseVectorSRMetric;
+import org.wikibrain.utils.WpThreadUtils;
 import org.wikibrain.wikidata.*;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author Shilad Sen
@@ -37,7 +46,7 @@ public class CategoryDataCreator {
     private static final Logger LOG = LoggerFactory.getLogger(CategoryDataCreator.class);
 
     private static final int INSTANCE_OF_ID = 31;
-    private static final int SUBCLASS_OF_ID = 279;
+    private static final int CANDIDATE_QUEUE_SIZE = 10000;
     private final Language lang;
     private final Env env;
     private final LocalCategoryMemberDao catDao;
@@ -47,18 +56,56 @@ public class CategoryDataCreator {
     private final DenseVectorSRMetric metric;
     private final WikidataDao wdDao;
     private final UniversalPageDao univDao;
+    private final SqlCache cache;
     private TIntSet pageIds = null;
+    private int numThreads = WpThreadUtils.getMaxThreads();
 
     public CategoryDataCreator(Env env, Language lang, SRMetric metric) throws ConfigurationException, DaoException {
+        this(env, lang, metric, new PagePopularity(env, lang));
+    }
+
+    /**
+     * @param numThreads Number of threads used to load page views and to filter pages by class.
+     */
+    public CategoryDataCreator(Env env, Language lang, SRMetric metric, int numThreads) throws ConfigurationException, DaoException {
+        this(env, lang, metric, new PagePopularity(env, lang, numThreads));
+        this.numThreads = numThreads;
+    }
+
+    private CategoryDataCreator(Env env, Language lang, SRMetric metric, PagePopularity pop) throws ConfigurationException, DaoException {
         this.env = env;
         this.lang = lang;
-        this.pop = new PagePopularity(env, lang);
+        this.pop = pop;
         this.wdDao = env.getComponent(WikidataDao.class);
         this.pageDao = env.getComponent(LocalPageDao.class);
         this.catDao = env.getComponent(LocalCategoryMemberDao.class);
         this.univDao = env.getComponent(UniversalPageDao.class);
         this.graph = catDao.getGraph(lang);
         this.metric = (DenseVectorSRMetric) metric;
+        String cachePath = env.getConfiguration().getString("dao.sqlCachePath");
+        this.cache = new SqlCache(env.getComponent(MetaInfoDao.class), new File(cachePath));
+    }
+
+    /**
+     * Selects the pages in a preset domain. The selected page ids are cached,
+     * and reused until the preset or the loaded pages, category members,
+     * Wikidata statements or concept mappings change.
+     */
+    public void setPages(DomainPreset preset) throws DaoException {
+        String key = "domain_pages_" + lang.getLangCode() + "_" + preset.name().toLowerCase() + "_" + preset.getSignature();
+        CompressedIntSet cached = (CompressedIntSet) cache.get(key, LocalPage.class, LocalCategoryMember.class,
+                WikidataStatement.class, UniversalPage.class);
+        if (cached != null) {
+            this.pageIds = cached.toSet();
+            LOG.info("loaded " + pageIds.size() + " cached pages for domain " + preset);
+            return;
+        }
+        if (preset.getRootType() == DomainPreset.Root.WIKIDATA_CLASS) {
+            setPagesUnderWikidataCategory(preset.getRoot(), preset.getDepth());
+        } else {
+            setPagesUnderCategory(preset.getRoot(), preset.getMaxPages(), preset.getParentClassIds(), preset.getDepth());
+        }
+        cache.put(key, new CompressedIntSet(pageIds));
     }
 
     public void create(File wmfFile, File outDir) throws DaoException, ConfigurationException, IOException {
@@ -66,28 +113,27 @@ public class CategoryDataCreator {
             outDir.mkdirs();
         }
         WMFPageNavVectorizer vectorizer = new WMFPageNavVectorizer(env, lang, pop, wmfFile, pageIds);
-        List<CartographVector> vectors = new ArrayList<CartographVector>();
+        StreamingDatasetWriter writer = new StreamingDatasetWriter(outDir);
         for (CartographVector v : vectorizer) {
             if (v != null) {
-                vectors.add(v);
+                writer.write(v);
             }
         }
+        writer.close();
 
-        DatasetWriter writer = new DatasetWriter(vectors);
-        writer.writeAll(outDir);
-        Map<String, Integer> id2Index = writer.getId2Index();
-
-        vectors.clear();
+        // Only the SR vectors are needed, since the names, links and popularity are already written
         SRVectorizer srVectorizer = new SRVectorizer(env, pop, metric);
-        for (String id : id2Index.keySet()) {
-            vectors.add(srVectorizer.getVector(id));
-        }
-
-        DatasetWriter writer2 = new DatasetWriter(vectors, id2Index, true);
-        writer2.writeVectors(new File(outDir, "vectors2.tsv"));
+        srVectorizer.writeVectors(writer.getIndex(), new File(outDir, "vectors2.tsv"));
     }
 
     public void setPagesUnderWikidataCategory(String parentType, boolean expand) throws DaoException {
+        setPagesUnderWikidataCategory(parentType, expand ? 1 : 0);
+    }
+
+    /**
+     * Selects the instances of a Wikidata class and of its subclasses up to depth levels below it.
+     */
+    public void setPagesUnderWikidataCategory(String parentType, int depth) throws DaoException {
         int pageId = pageDao.getIdByTitle(parentType, lang, NameSpace.ARTICLE);
         if (pageId < 0) {
             throw new IllegalArgumentException("Couldn't find page for " + parentType);
@@ -98,8 +144,14 @@ public class CategoryDataCreator {
         }
         TIntSet classes = new TIntHashSet();
         classes.add(wdId);
-        if (expand) {
-            classes.addAll(wdDao.conceptsWithValue("subclass of", WikidataValue.forItem(wdId)));
+        if (depth > 0) {
+            WikidataClassGraph classGraph = getClassGraph();
+            int distances[] = classGraph.getDistances(classes, depth);
+            for (int i = 0; i < distances.length; i++) {
+                if (distances[i] > 0) {
+                    classes.add(classGraph.getClassId(i));
+                }
+            }
             LOG.info("expanded " + wdId + " to " + (classes.size() - 1) + " total subclasses");
         }
         TIntSet res = new TIntHashSet();
@@ -115,41 +167,170 @@ public class CategoryDataCreator {
 
     }
 
-    public void setPagesUnderCategory(String categoryName, int maxPages, TIntSet parentClassIds, int maxInheritance) throws DaoException {
+    /**
+     * Sets the number of threads used to filter pages by their Wikidata class.
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Selects up to maxPages pages found by a breadth first search under a category.
+     *
+     * If parentClassIds is not null, pages must also pass hasParentClass. The
+     * search thread numbers candidate pages in search order and feeds them into
+     * a bounded queue, and a pool of workers runs the class filter. Verdicts are
+     * held until every earlier candidate has one and then accepted in search
+     * order, so the selection is the first maxPages matching pages no matter
+     * which worker finishes first. The search stops as soon as maxPages pages
+     * have been accepted.
+     */
+    public void setPagesUnderCategory(String categoryName, final int maxPages, final TIntSet parentClassIds, final int maxInheritance) throws DaoException {
         int catId = pageDao.getIdByTitle(categoryName, lang, NameSpace.CATEGORY);
-        CategoryBfs bfs = new CategoryBfs(graph, catId, NameSpace.CATEGORY, lang, maxPages, null, catDao, -1);
-        TIntSet results = new TIntHashSet();
-        int numPages = 0;
-        while (bfs.hasMoreResults()) {
-            CategoryBfs.BfsVisited visited = bfs.step();
-            for (int pageId : visited.pages.keys()) {
-                if (parentClassIds != null) {
-                    boolean b = hasParentClass(pageId, parentClassIds, maxInheritance);
-//                    if (numPages++ % 100 < 5) System.out.format("%d. %s %s\n", numPages, pageDao.getById(lang, pageId), b);
-                    if (!b) {
-                        continue;
+        final TIntSet results = new TIntHashSet();
+        if (parentClassIds == null) {
+            CategoryBfs bfs = new CategoryBfs(graph, catId, NameSpace.CATEGORY, lang, maxPages, null, catDao, -1);
+            while (results.size() < maxPages && bfs.hasMoreResults()) {
+                for (int pageId : bfs.step().pages.keys()) {
+                    results.add(pageId);
+                    if (results.size() >= maxPages) {
+                        break;
                     }
                 }
-                results.add(pageId);
-                if (results.size() >= maxPages) {
-                    break;
+            }
+            this.pageIds = results;
+            return;
+        }
+
+        // The class filter rejects pages, so the search itself is not limited to maxPages
+        CategoryBfs bfs = new CategoryBfs(graph, catId, NameSpace.CATEGORY, lang, Integer.MAX_VALUE, null, catDao, -1);
+        // Candidates are packed as (search order << 32 | page id)
+        final BlockingQueue<Long> candidates = new ArrayBlockingQueue<Long>(CANDIDATE_QUEUE_SIZE);
+        // Verdicts that arrived before an earlier candidate's, keyed by search order: the page id or -1
+        final TIntIntMap pending = new TIntIntHashMap();
+        final int nextInOrder[] = { 0 };
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final AtomicInteger numChecked = new AtomicInteger();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+        ExecutorService workers = Executors.newFixedThreadPool(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            long candidate = candidates.take();
+                            if (candidate < 0) {
+                                return;
+                            }
+                            if (finished.get()) {
+                                continue;
+                            }
+                            int order = (int) (candidate >>> 32);
+                            int pageId = (int) candidate;
+                            boolean accepted = hasParentClass(pageId, parentClassIds, maxInheritance);
+                            int numAccepted;
+                            synchronized (results) {
+                                pending.put(order, accepted ? pageId : -1);
+                                while (!finished.get() && pending.containsKey(nextInOrder[0])) {
+                                    int next = pending.remove(nextInOrder[0]++);
+                                    if (next >= 0) {
+                                        results.add(next);
+                                    }
+                                    if (results.size() >= maxPages) {
+                                        finished.set(true);
+                                    }
+                                }
+                                numAccepted = results.size();
+                            }
+                            if (numChecked.incrementAndGet() % 10000 == 0) {
+                                LOG.info("checked " + numChecked.get() + " candidate pages and accepted " + numAccepted);
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure.compareAndSet(null, e);
+                        finished.set(true);
+                    }
+                }
+            });
+        }
+
+        TIntSet seen = new TIntHashSet();
+        try {
+            while (!finished.get() && bfs.hasMoreResults()) {
+                for (int pageId : bfs.step().pages.keys()) {
+                    if (finished.get()) {
+                        break;
+                    }
+                    if (!seen.add(pageId)) {
+                        continue;
+                    }
+                    long candidate = ((long) (seen.size() - 1) << 32) | pageId;
+                    while (!finished.get() && !candidates.offer(candidate, 100, TimeUnit.MILLISECONDS)) {
+                        // Wait for the workers to catch up
+                    }
                 }
             }
+            LOG.info("searched " + seen.size() + " pages under " + categoryName);
+
+            // Workers stop at the end markers. Candidates left after finishing are not needed.
+            if (finished.get()) {
+                candidates.clear();
+            }
+            for (int i = 0; i < numThreads; i++) {
+                candidates.put(-1L);
+            }
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            throw new RuntimeException(e);
+        }
+        if (failure.get() instanceof DaoException) {
+            throw (DaoException) failure.get();
+        } else if (failure.get() != null) {
+            throw new RuntimeException(failure.get());
         }
+        LOG.info("selected " + results.size() + " pages under " + categoryName);
         this.pageIds = results;
     }
 
-    private WikidataStatement getFromIterable(Iterable<WikidataStatement> iterable) {
-        WikidataStatement result = null;
-        for (WikidataStatement ws : iterable) {
-            result = ws;
+    private WikidataClassGraph classGraph = null;
+    private TIntSet distanceTargets = null;
+    private int distanceSteps = -1;
+    private int[] classDistances = null;
+
+    /**
+     * Returns the distance from each class in the subclass graph to the valid parents,
+     * loading the graph on first use and recomputing distances when the parents change.
+     */
+    private synchronized WikidataClassGraph getClassGraph() throws DaoException {
+        if (classGraph == null) {
+            classGraph = WikidataClassGraph.build(wdDao);
         }
-        return result;
+        return classGraph;
     }
 
-    private TIntIntMap isMatch = new TIntIntHashMap();
-    private Map<Integer, Set<Integer>> parents = new HashMap<Integer, Set<Integer>>();
+    private synchronized int[] getClassDistances(TIntSet validParentIds, int maxSteps) throws DaoException {
+        WikidataClassGraph classGraph = getClassGraph();
+        if (classDistances == null || maxSteps != distanceSteps || !validParentIds.equals(distanceTargets)) {
+            // A page's direct class is zero steps away, so a match must be reached in maxSteps - 1 hops
+            classDistances = classGraph.getDistances(validParentIds, maxSteps - 1);
+            distanceTargets = new TIntHashSet(validParentIds);
+            distanceSteps = maxSteps;
+        }
+        return classDistances;
+    }
+
+    /**
+     * Returns true if the page is an instance of a class that is one of the
+     * valid parents, or a subclass of one within maxSteps - 1 subclass hops.
+     */
     public boolean hasParentClass(int pageId, TIntSet validParentIds, int maxSteps) throws DaoException {
+        if (maxSteps <= 0) {
+            return false;
+        }
+        int distances[] = getClassDistances(validParentIds, maxSteps);
         int conceptId = univDao.getUnivPageId(lang, pageId);
         if (conceptId < 0) {
             LOG.info("No concept associated with page " + pageId);
@@ -160,64 +341,18 @@ public class CategoryDataCreator {
                                         .withEntityType(WikidataEntity.Type.ITEM)
                                         .withPropertyId(INSTANCE_OF_ID)
                                         .build();
-        List<WikidataStatement> statements = IteratorUtils.toList(wdDao.get(filter).iterator());
-        for (WikidataStatement st : statements) {
-
-            // Do a BFS from this entityType
-            int startEntityType = st.getValue().getItemValue();
-            TIntSet frontier = new TIntHashSet();
-            TIntSet visited = new TIntHashSet();
-            frontier.add(startEntityType);
-
-            for (int i = 0; i < maxSteps; i++) {
-
-                TIntSet nextFrontier = new TIntHashSet();
-
-                for (int entityType : frontier.toArray()) {
-
-                    // See if we already know the answer
-                    if (isMatch.containsKey(entityType)) {
-                        if (isMatch.get(entityType) == 1) {
-                            return true;
-                        } else {
-                            continue;
-                        }
-                    }
-
-                    // Are we a match?
-                    if (validParentIds.contains(entityType)) {
-                        isMatch.put(startEntityType, 1);
-                        return true;
-                    }
-
-                    // Have we already headed down this path?
-                    if (visited.contains(entityType)) {
-                        continue;
-                    }
-                    visited.add(entityType);
-
-                    // Add the mapping forthe parent entity
-                    if (!parents.containsKey(entityType)) {
-                        filter = new WikidataFilter.Builder()
-                                .withEntityId(entityType)
-                                .withEntityType(WikidataEntity.Type.ITEM)
-                                .withPropertyId(SUBCLASS_OF_ID)
-                                .build();
-
-                        Set<Integer> s = new HashSet<Integer>();
-                        for (WikidataStatement st2 : wdDao.get(filter)) {
-                            s.add(st2.getValue().getItemValue());
-                        }
-                        parents.put(entityType, s);
-                    }
-
-                    for (int entityType2 : parents.get(entityType)) {
-                        if (!visited.contains(entityType2)) nextFrontier.add(entityType2);
-                    }
-                }
-                frontier = nextFrontier;
+        for (WikidataStatement st : wdDao.get(filter)) {
+            if (st.getValue() == null || st.getValue().getType() != WikidataValue.Type.ITEM) {
+                continue;
+            }
+            int entityType = st.getValue().getItemValue();
+            if (validParentIds.contains(entityType)) {
+                return true;
+            }
+            int i = classGraph.indexOf(entityType);
+            if (i >= 0 && distances[i] >= 0) {
+                return true;
             }
-            isMatch.put(startEntityType, 0);
         }
         return false;
     }
@@ -256,7 +391,7 @@ public class CategoryDataCreator {
                         .hasArg()
                         .isRequired()
                         .withLongOpt("category")
-                        .withDescription("Name of predifined category")
+                        .withDescription("name of a predefined domain: " + Arrays.toString(DomainPreset.values()).toLowerCase())
                         .create("y"));
 
         // Specify the minimum number of hours worth of pageviews
@@ -267,6 +402,14 @@ public class CategoryDataCreator {
                         .withDescription("hours worth of page views")
                         .create("r"));
 
+        // Specify the number of threads used to load page views and filter pages
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("jobs")
+                        .withDescription("threads used to load page views and filter pages by class")
+                        .create("j"));
+
         EnvBuilder.addStandardOptions(options);
 
 
@@ -289,21 +432,11 @@ public class CategoryDataCreator {
         // Build word2vec if necessary
         String metric = cmd.hasOption("m") ? cmd.getOptionValue("m") : "prebuiltword2vec";
         SRMetric sr = env.getComponent(SRMetric.class, metric, lang);
-        CategoryDataCreator cdc = new CategoryDataCreator(env, env.getDefaultLanguage(), sr);
-
-        if (cmd.getOptionValue("y").equals("movies")) {
-            cdc.setPagesUnderWikidataCategory("Film", false);
-        } else if(cmd.getOptionValue("y").equals("companies")) {
-            TIntSet validParentIds = new TIntHashSet();
-            validParentIds.add(4830453);    // Business enterprise: https://www.wikidata.org/wiki/Q4830453
-            validParentIds.add(6881511);    // Enterprise: https://www.wikidata.org/wiki/Q6881511
-            validParentIds.add(783794);     // Company: https://www.wikidata.org/wiki/Q783794
-
-//            cdc.hasParentClass(cdc.pageDao.getIdByTitle("Zantigo", lang, NameSpace.ARTICLE), validParentIds, 4);
-            cdc.setPagesUnderCategory("Category:Companies", 100000, validParentIds, 5);
-        } else {
-            throw new IllegalArgumentException("Unrecognized cateogyr: " + cmd.getOptionValue("y"));
-        }
+        CategoryDataCreator cdc = cmd.hasOption("j")
+                ? new CategoryDataCreator(env, env.getDefaultLanguage(), sr, Integer.valueOf(cmd.getOptionValue("j")))
+                : new CategoryDataCreator(env, env.getDefaultLanguage(), sr);
+
+        cdc.setPages(DomainPreset.forName(cmd.getOptionValue("y")));
         cdc.create(new File(cmd.getOptionValue('v')), new File(output));
     }
 }
@@ -1,12 +1,12 @@
 package info.cartograph;
 
 import com.google.common.primitives.Ints;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
-import gnu.trove.set.TIntSet;
-import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.cli.*;
-import org.apache.commons.collections15.map.HashedMap;
+import org.apache.commons.collections15.Transformer;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
 import org.wikibrain.conf.DefaultOptionBuilder;
@@ -21,6 +21,7 @@ import org.wikibrain.core.model.CategoryGraph;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.phrases.PhraseAnalyzer;
 import org.wikibrain.utils.WpIOUtils;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.*;
 import java.util.*;
@@ -32,72 +33,117 @@ import java.util.logging.Logger;
 public class CategoryLabelCreator {
     public static final Logger LOG = Logger.getLogger(CategoryLabelCreator.class.getName());
 
-    public static void writePages(Language lang, LocalPageDao pageDao, CategoryGraph graph, Map<Integer, int[]> catAncestors, String pathOut) throws DaoException, IOException {
+    public static void writePages(Language lang, LocalPageDao pageDao, CategoryGraph graph, CategoryAncestors catAncestors, String pathOut) throws DaoException, IOException {
+        writePages(lang, pageDao, graph, catAncestors, pathOut, WpThreadUtils.getMaxThreads());
+    }
+
+    /**
+     * Writes each page followed by the display names of its categories and their ancestors.
+     * Pages are labeled in parallel but written in the order the page dao returns them.
+     * Pages without categories are skipped.
+     */
+    public static void writePages(Language lang, LocalPageDao pageDao, final CategoryGraph graph, final CategoryAncestors catAncestors, String pathOut, int numThreads) throws DaoException, IOException {
         LOG.info("counting categories");
 
-        // Count the number of categories per page
-        TIntIntMap pageCatCounts = new TIntIntHashMap();
+        // Count the number of categories per page, assigning each page a row
+        final TIntIntMap pageRows = new TIntIntHashMap();
+        TIntList rowCounts = new TIntArrayList();
         for (int[] catPages : graph.catPages) {
             for (int pageId : catPages) {
-                pageCatCounts.adjustOrPutValue(pageId, 1, 1);
+                if (pageRows.containsKey(pageId)) {
+                    int row = pageRows.get(pageId);
+                    rowCounts.set(row, rowCounts.get(row) + 1);
+                } else {
+                    pageRows.put(pageId, rowCounts.size());
+                    rowCounts.add(1);
+                }
             }
         }
 
-        // Allocate and fill a datastructure from a page to its categories
+        // Fill a CSR datastructure from a page's row to its categories
         LOG.info("creating page -> category mapping");
-        Map<Integer, int[]> pageCats = new HashMap<Integer, int[]>();
-        for (int pageId : pageCatCounts.keys()) {
-            pageCats.put(pageId, new int[pageCatCounts.get(pageId)]);
+        final int rowOffsets[] = new int[rowCounts.size() + 1];
+        for (int row = 0; row < rowCounts.size(); row++) {
+            rowOffsets[row + 1] = rowOffsets[row] + rowCounts.get(row);
         }
+        final int rowCats[] = new int[rowOffsets[rowCounts.size()]];
+        int next[] = Arrays.copyOf(rowOffsets, rowCounts.size());
         for (int catIndex = 0; catIndex < graph.catPages.length; catIndex++) {
             for (int pageId : graph.catPages[catIndex]) {
-                int i =  pageCatCounts.adjustOrPutValue(pageId, -1, -1);
-                pageCats.get(pageId)[i] = catIndex;
+                rowCats[next[pageRows.get(pageId)]++] = catIndex;
             }
         }
-        for (int i : pageCatCounts.values()) assert(i == 0);
 
-        // Output the pages.
-        LOG.info("writing category labels to " + pathOut);
-        BufferedWriter writer = WpIOUtils.openWriter(pathOut);
-        for (LocalPage page : pageDao.get(DaoFilter.normalPageFilter(lang))) {
-            writer.write("" + page.getLocalId());
-            if (!pageCats.containsKey(page.getLocalId())) continue;
-            TIntSet cats = new TIntHashSet();
-            for (int catIndex : pageCats.get(page.getLocalId())) {
-                cats.add(catIndex);
-                cats.addAll(catAncestors.get(catIndex));
-            }
+        // Strip the namespace from category names once
+        final String names[] = new String[graph.cats.length];
+        for (int i = 0; i < names.length; i++) {
+            String parts[] = graph.cats[i].split(":", 2);
+            names[i] = parts[parts.length - 1];
+        }
 
-            for (int catIndex : cats.toArray()) {
-                String parts[] = graph.cats[catIndex].split(":", 2);
-                writer.write("\t" + parts[parts.length - 1]);
+        // Per-thread stamps mark the categories and components already emitted for a page
+        final int numCats = names.length;
+        final ThreadLocal<int[]> stamps = new ThreadLocal<int[]>() {
+            protected int[] initialValue() {
+                return new int[2 * numCats + 1];
             }
-            writer.write("\n");
-        }
-        writer.close();
-    }
+        };
 
-    public static  Map<Integer, int[]> buildParentCategories(CategoryGraph graph) {
-        Map<Integer, int[]> result = new HashedMap<Integer, int[]>();
-        for (int i = 0; i < graph.catParents.length; i++) {
-            TIntSet ancestors = new TIntHashSet();
-            getAncestors(i, graph, ancestors);
-            result.put(i, ancestors.toArray());
-        }
-        return result;
-    }
+        // Output the pages.
+        LOG.info("writing category labels to " + pathOut + " using " + numThreads + " threads");
+        ParallelTransformIterator<LocalPage, String> lines = new ParallelTransformIterator<LocalPage, String>(
+                pageDao.get(DaoFilter.normalPageFilter(lang)).iterator(),
+                new Transformer<LocalPage, String>() {
+                    public String transform(LocalPage page) {
+                        if (!pageRows.containsKey(page.getLocalId())) {
+                            return null;
+                        }
+                        int row = pageRows.get(page.getLocalId());
+                        int marks[] = stamps.get();
+                        int stamp = ++marks[2 * numCats];
+                        int members[] = catAncestors.getMembers();
+                        StringBuilder line = new StringBuilder();
+                        line.append(page.getLocalId());
+                        for (int i = rowOffsets[row]; i < rowOffsets[row + 1]; i++) {
+                            int comp = catAncestors.getComponent(rowCats[i]);
+                            if (marks[numCats + comp] == stamp) {
+                                continue;
+                            }
+                            marks[numCats + comp] = stamp;
+                            for (int j = catAncestors.getStart(comp); j < catAncestors.getEnd(comp); j++) {
+                                int catIndex = members[j];
+                                if (marks[catIndex] != stamp) {
+                                    marks[catIndex] = stamp;
+                                    line.append('\t').append(names[catIndex]);
+                                }
+                            }
+                        }
+                        return line.append('\n').toString();
+                    }
+                },
+                numThreads, true);
 
-    public static void getAncestors(int catIndex, CategoryGraph graph, TIntSet ancestors) {
-        if (ancestors.contains(catIndex)) {
-            return;
-        }
-        ancestors.add(catIndex);
-        for (int parentIndex : graph.catParents[catIndex]) {
-            if (graph.catCosts[parentIndex] >= graph.catCosts[catIndex] && !ancestors.contains(parentIndex)) {
-                getAncestors(parentIndex, graph, ancestors);
+        BufferedWriter writer = WpIOUtils.openWriter(pathOut);
+        int numPages = 0;
+        try {
+            while (lines.hasNext()) {
+                writer.write(lines.next());
+                if (++numPages % 100000 == 0) {
+                    LOG.info("wrote category labels for " + numPages + " pages");
+                }
             }
+        } finally {
+            lines.close();
+            writer.close();
         }
+        LOG.info("wrote category labels for " + numPages + " pages");
+    }
+
+    /**
+     * Computes the ancestors of every category in the graph using all available threads.
+     */
+    public static CategoryAncestors buildParentCategories(CategoryGraph graph) {
+        return CategoryAncestors.build(graph, WpThreadUtils.getMaxThreads());
     }
 
     public static void main(String[] args) throws ConfigurationException, DaoException, IOException {
@@ -142,7 +188,7 @@ public class CategoryLabelCreator {
         // Get the graph
         CategoryGraph graph = catDao.getGraph(lang);
 
-        Map<Integer, int[]> ancestors = buildParentCategories(graph);
+        CategoryAncestors ancestors = buildParentCategories(graph);
 
         writePages(lang, pageDao, graph, ancestors, output + "/categories.tsv");
 
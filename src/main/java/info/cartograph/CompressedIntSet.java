@@ -0,0 +1,76 @@
+package info.cartograph;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An immutable set of non-negative ints stored compactly for caching.
+ *
+ * The ints are sorted, and the gaps between consecutive ints are written
+ * as variable length integers with seven bits per byte. Page ids are dense,
+ * so most gaps fit in one or two bytes.
+ *
+ * @author Shilad Sen
+ */
+public class CompressedIntSet implements Serializable {
+    private final int size;
+    private final byte[] deltas;
+
+    public CompressedIntSet(TIntSet ints) {
+        int sorted[] = ints.toArray();
+        Arrays.sort(sorted);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(sorted.length * 2);
+        int last = 0;
+        for (int i : sorted) {
+            if (i < 0) {
+                throw new IllegalArgumentException("Negative value: " + i);
+            }
+            int gap = i - last;
+            while ((gap & ~0x7F) != 0) {
+                out.write((gap & 0x7F) | 0x80);
+                gap >>>= 7;
+            }
+            out.write(gap);
+            last = i;
+        }
+        this.size = sorted.length;
+        this.deltas = out.toByteArray();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the ints in increasing order.
+     */
+    public int[] toArray() {
+        int result[] = new int[size];
+        int pos = 0, last = 0;
+        for (int i = 0; i < size; i++) {
+            int gap = 0, shift = 0;
+            while (true) {
+                int b = deltas[pos++];
+                gap |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                shift += 7;
+            }
+            last += gap;
+            result[i] = last;
+        }
+        return result;
+    }
+
+    public TIntSet toSet() {
+        int ints[] = toArray();
+        TIntSet set = new TIntHashSet(ints.length * 2);
+        set.addAll(ints);
+        return set;
+    }
+}
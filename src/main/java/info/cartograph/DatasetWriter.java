@@ -1,5 +1,10 @@
 package info.cartograph;
 
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.wikibrain.core.dao.DaoException;
@@ -11,42 +16,110 @@ import java.io.IOException;
 import java.util.*;
 
 /**
+ * Writes a list of vectors as a dataset. Page ids are mapped to dense
+ * indices with a primitive int map, so links are resolved without
+ * creating strings.
+ *
  * @author Shilad Sen
  */
 public class DatasetWriter {
     private final List<CartographVector> vectors;
-    private final Map<String, Integer> id2Index;
+    private final TIntIntMap id2Index;
 
     public DatasetWriter(List<CartographVector> vectors) {
-        this(vectors, null, false);
+        this(vectors, (TIntIntMap) null, false);
     }
 
+    /**
+     * Adapter for callers with a String keyed index. The index is copied,
+     * so new ids are not added to the passed map.
+     */
     public DatasetWriter(List<CartographVector> vectors, Map<String, Integer> id2Index, boolean skipMissing) {
+        this(vectors, (id2Index == null) ? null : toIntMap(id2Index), skipMissing);
+    }
+
+    public DatasetWriter(List<CartographVector> vectors, TIntIntMap id2Index, boolean skipMissing) {
         this.vectors = new ArrayList<CartographVector>();
-        this.id2Index = (id2Index != null) ? id2Index : new HashMap<String, Integer>();
-        Set<String> added = new HashSet<String>();
+        this.id2Index = (id2Index != null) ? id2Index : new TIntIntHashMap();
+        TIntSet added = new TIntHashSet();
         for (CartographVector v : vectors) {
             if (v != null) {
-                if (!this.id2Index.containsKey(v.getId())) {
+                if (!this.id2Index.containsKey(v.getIntId())) {
                     if (skipMissing) continue;
-                    this.id2Index.put(v.getId(), this.id2Index.size() + 1);
+                    this.id2Index.put(v.getIntId(), this.id2Index.size() + 1);
                 }
-                if (!added.contains(v.getId())) {
-                    added.add(v.getId());
+                if (added.add(v.getIntId())) {
                     this.vectors.add(v);
                 }
             }
         }
     }
 
+    private static TIntIntMap toIntMap(Map<String, Integer> map) {
+        TIntIntMap result = new TIntIntHashMap(map.size());
+        for (Map.Entry<String, Integer> entry : map.entrySet()) {
+            result.put(Integer.valueOf(entry.getKey()), entry.getValue());
+        }
+        return result;
+    }
+
+
+    /**
+     * The files written for the numeric columns of a dataset.
+     * Ids and names are always written as TSV.
+     */
+    public enum Format {
+        TSV, BINARY, BOTH;
+
+        public boolean hasTsv() {
+            return this != BINARY;
+        }
+
+        public boolean hasBinary() {
+            return this != TSV;
+        }
+    }
 
     public void writeAll(File outputDir) throws IOException, DaoException {
+        writeAll(outputDir, Format.TSV);
+    }
+
+    public void writeAll(File outputDir, Format format) throws IOException, DaoException {
         if (!outputDir.isDirectory()) outputDir.mkdirs();
         writeIds(new File(outputDir, "ids.tsv"));
         writeTitles(new File(outputDir, "names.tsv"));
-        writeVectors(new File(outputDir, "vectors.tsv"));
-        writePopularity(new File(outputDir, "popularity.tsv"));
-        writeLinks(new File(outputDir, "links.tsv"));
+        if (format.hasTsv()) {
+            writeVectors(new File(outputDir, "vectors.tsv"));
+            writePopularity(new File(outputDir, "popularity.tsv"));
+            writeLinks(new File(outputDir, "links.tsv"));
+        }
+        if (format.hasBinary()) {
+            writeBinary(outputDir);
+        }
+    }
+
+    /**
+     * Writes vectors, popularity and links as binary files described by a manifest.
+     * See BinaryDatasetWriter for the layout.
+     */
+    public void writeBinary(File outputDir) throws IOException {
+        writeBinary(outputDir, VectorQuantizer.Type.FLOAT32);
+    }
+
+    public void writeBinary(File outputDir, VectorQuantizer.Type quantization) throws IOException {
+        BinaryDatasetWriter w = new BinaryDatasetWriter(outputDir, quantization);
+        for (CartographVector cv : vectors) {
+            w.writeRow(id2Index.get(cv.getIntId()), cv.getVector(), cv.getPopularity());
+            TIntList links = new TIntArrayList();
+            for (int id2 : cv.getLinks()) {
+                int index = id2Index.get(id2);
+                if (index > 0) {
+                    links.add(index);
+                }
+            }
+            w.writeLinks(links.toArray());
+        }
+        w.close();
     }
 
 
@@ -54,7 +127,7 @@ public class DatasetWriter {
         BufferedWriter w = WpIOUtils.openWriter(out);
         w.write("id\tname\n");
         for (CartographVector v : vectors) {
-            w.write(id2Index.get(v.getId()) + "\t" + v.getName()+ "\n");
+            w.write(id2Index.get(v.getIntId()) + "\t" + v.getName()+ "\n");
         }
         w.close();
     }
@@ -63,7 +136,7 @@ public class DatasetWriter {
         BufferedWriter w = WpIOUtils.openWriter(out);
         w.write("id\texternalId\n");
         for (CartographVector v : vectors) {
-            w.write(id2Index.get(v.getId()) + "\t" + v.getId()+ "\n");
+            w.write(id2Index.get(v.getIntId()) + "\t" + v.getIntId()+ "\n");
         }
         w.close();
     }
@@ -72,7 +145,7 @@ public class DatasetWriter {
         BufferedWriter w = WpIOUtils.openWriter(out);
         w.write("id\tvector\n");
         for (CartographVector cv : vectors) {
-            int index = id2Index.get(cv.getId());
+            int index = id2Index.get(cv.getIntId());
             w.write(index + "");
             for (float x : cv.getVector()) {
                 w.write("\t" + Float.toString(x));
@@ -86,7 +159,7 @@ public class DatasetWriter {
         BufferedWriter w = WpIOUtils.openWriter(out);
         w.write("id\tpopularity\n");
         for (CartographVector v : vectors) {
-            w.write(id2Index.get(v.getId()) + "\t" + v.getPopularity()+ "\n");
+            w.write(id2Index.get(v.getIntId()) + "\t" + v.getPopularity()+ "\n");
         }
         w.close();
     }
@@ -95,11 +168,12 @@ public class DatasetWriter {
         BufferedWriter w = WpIOUtils.openWriter(out);
         w.write("id\tlinks\n");
         for (CartographVector cv : vectors) {
-            int index = id2Index.get(cv.getId());
+            int index = id2Index.get(cv.getIntId());
             w.write(index + "");
-            for (String id2 : cv.getLinkIds()) {
-                if (id2Index.containsKey(id2)) {
-                    w.write("\t" + id2Index.get(id2));
+            for (int id2 : cv.getLinks()) {
+                int index2 = id2Index.get(id2);
+                if (index2 > 0) {
+                    w.write("\t" + index2);
                 }
             }
             w.write("\n");
@@ -107,7 +181,24 @@ public class DatasetWriter {
         w.close();
     }
 
-    public Map<String, Integer> getId2Index() {
+    /**
+     * Returns the mapping from page id to dense index.
+     * Indices start at 1, so a missing page maps to 0.
+     */
+    public TIntIntMap getIndex() {
         return id2Index;
     }
+
+    /**
+     * Returns a String keyed copy of the index for older callers.
+     */
+    public Map<String, Integer> getId2Index() {
+        Map<String, Integer> result = new HashMap<String, Integer>(id2Index.size());
+        TIntIntIterator iter = id2Index.iterator();
+        while (iter.hasNext()) {
+            iter.advance();
+            result.put("" + iter.key(), iter.value());
+        }
+        return result;
+    }
 }
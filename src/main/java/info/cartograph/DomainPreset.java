@@ -0,0 +1,102 @@
+package info.cartograph;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.Arrays;
+
+/**
+ * Predefined domains for building domain specific maps.
+ *
+ * A domain is rooted at either a Wikidata class, in which case it contains
+ * the instances of the class and its subclasses up to the given depth, or
+ * a category, in which case it contains pages found by a breadth first
+ * search under the category. Category domains may also require pages to
+ * be instances of one of a set of Wikidata classes.
+ *
+ * To add a domain, add a constant here.
+ *
+ * @author Shilad Sen
+ */
+public enum DomainPreset {
+    MOVIES(Root.WIKIDATA_CLASS, "Film", 0, Integer.MAX_VALUE),
+
+    COMPANIES(Root.CATEGORY, "Category:Companies", 5, 100000,
+            4830453,    // Business enterprise: https://www.wikidata.org/wiki/Q4830453
+            6881511,    // Enterprise: https://www.wikidata.org/wiki/Q6881511
+            783794);    // Company: https://www.wikidata.org/wiki/Q783794
+
+    public enum Root {
+        /**
+         * The root is the title of an article about a Wikidata class.
+         */
+        WIKIDATA_CLASS,
+
+        /**
+         * The root is the title of a category.
+         */
+        CATEGORY
+    }
+
+    private final Root rootType;
+    private final String root;
+    private final int depth;
+    private final int maxPages;
+    private final int[] parentClassIds;
+
+    /**
+     * @param depth For class roots, the number of subclass levels included.
+     *              For category roots, the maximum number of subclass hops
+     *              from a page's class to one of the parent classes.
+     */
+    DomainPreset(Root rootType, String root, int depth, int maxPages, int... parentClassIds) {
+        this.rootType = rootType;
+        this.root = root;
+        this.depth = depth;
+        this.maxPages = maxPages;
+        this.parentClassIds = parentClassIds;
+    }
+
+    public Root getRootType() {
+        return rootType;
+    }
+
+    public String getRoot() {
+        return root;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getMaxPages() {
+        return maxPages;
+    }
+
+    /**
+     * Returns the Wikidata classes pages must belong to, or null if pages are not filtered by class.
+     */
+    public TIntSet getParentClassIds() {
+        return (parentClassIds.length == 0) ? null : new TIntHashSet(parentClassIds);
+    }
+
+    /**
+     * A short string that changes whenever the definition of the preset changes.
+     */
+    public String getSignature() {
+        String definition = rootType + "|" + root + "|" + depth + "|" + maxPages + "|" + Arrays.toString(parentClassIds);
+        return Integer.toHexString(definition.hashCode());
+    }
+
+    /**
+     * Returns the preset with the given case-insensitive name.
+     */
+    public static DomainPreset forName(String name) {
+        for (DomainPreset preset : values()) {
+            if (preset.name().equalsIgnoreCase(name)) {
+                return preset;
+            }
+        }
+        throw new IllegalArgumentException("Unrecognized domain: " + name + " (known domains are " + Arrays.toString(values()).toLowerCase() + ")");
+    }
+}
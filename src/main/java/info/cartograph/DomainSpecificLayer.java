@@ -3,6 +3,10 @@ package info.cartograph;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.apache.commons.cli.*;
+import org.apache.commons.collections15.Transformer;
+import org.apache.commons.io.LineIterator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.DefaultOptionBuilder;
 import org.wikibrain.core.cmd.Env;
@@ -16,21 +20,40 @@ import org.wikibrain.core.model.Title;
 import org.wikibrain.phrases.PhraseAnalyzer;
 import org.wikibrain.sr.SRMetric;
 import org.wikibrain.utils.WpIOUtils;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Shilad Sen
  */
 public class DomainSpecificLayer {
+    private static final Logger LOG = LoggerFactory.getLogger(DomainSpecificLayer.class);
+    private static final int CACHE_SIZE = 500000;
+    private static final int MAX_PHRASES_PER_PAGE = 50;
+
     private final PhraseAnalyzer resolver;
     private final TIntHashSet wpIds;
     private final Language lang;
     private final LocalPageDao pageDao;
+    private int numThreads = WpThreadUtils.getMaxThreads();
+
+    // Least recently used resolutions of phrases to page ids, or -1 for phrases with no match
+    private final Map<String, Integer> cache = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+    private final AtomicInteger numCacheHits = new AtomicInteger();
+    private final AtomicInteger numTableHits = new AtomicInteger();
+    private PhraseTable phraseTable = null;
 
     DomainSpecificLayer(Env env, Language lang, File wpIdMapping) throws ConfigurationException, IOException {
         this.lang = lang;
@@ -50,38 +73,120 @@ public class DomainSpecificLayer {
         reader.close();;
     }
 
+    /**
+     * Sets the number of threads used to resolve phrases.
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * Reads the phrase table from a file. The table is built and saved first if
+     * the file does not exist or holds a table built for other pages or another language.
+     * Phrases found in the table are resolved without the phrase analyzer.
+     */
+    public void loadPhraseTable(File file) throws IOException {
+        if (file.isFile()) {
+            phraseTable = PhraseTable.read(file);
+            if (phraseTable.isFor(lang, wpIds)) {
+                return;
+            }
+            LOG.warn("Phrase table " + file + " was built for different pages; rebuilding it");
+        }
+        phraseTable = PhraseTable.build(lang, pageDao, resolver, wpIds, MAX_PHRASES_PER_PAGE, numThreads);
+        phraseTable.write(file);
+    }
+
+    /**
+     * Returns the first of the top resolved pages for a phrase that is in the
+     * id mapping, or -1 if there is none. The phrase table is consulted first,
+     * if one is loaded. Resolver results are cached by phrase.
+     */
+    public int resolve(String phrase) throws DaoException {
+        if (phraseTable != null) {
+            int pageId = phraseTable.get(phrase);
+            if (pageId >= 0) {
+                numTableHits.incrementAndGet();
+                return pageId;
+            }
+        }
+        synchronized (cache) {
+            Integer pageId = cache.get(phrase);
+            if (pageId != null) {
+                numCacheHits.incrementAndGet();
+                return pageId;
+            }
+        }
+        LinkedHashMap<LocalId, Float> matches = resolver.resolve(lang, phrase, 20);
+        int pageId = -1;
+        for (LocalId lid : matches.keySet()) {
+            if (wpIds.contains(lid.getId())) {
+                pageId = lid.getId();
+                break;
+            }
+        }
+        synchronized (cache) {
+            cache.put(phrase, pageId);
+        }
+        return pageId;
+    }
+
+    /**
+     * Replaces the phrase in the first column of each input row with its resolved page id.
+     * Rows are resolved in parallel and written in input order. Unresolved rows are dropped.
+     * An error while resolving a phrase stops the layer and is rethrown.
+     */
     public void createLayer(File input, File output) throws IOException, DaoException {
         BufferedReader reader = WpIOUtils.openBufferedReader(input);
         BufferedWriter writer = WpIOUtils.openWriter(output);
         writer.write(reader.readLine() + "\n");    // header
-        int numLines = 0;
-        int numMatches = 0;
 
-        while (true) {
-            String line = reader.readLine();
-            if (line == null) {
-                break;
-            }
-            numLines++;
-            String [] tokens = line.split("\t", 2);
-            LinkedHashMap<LocalId, Float> matches = resolver.resolve(lang, tokens[0], 20);
-            int pageId = -1;
-            for (LocalId lid : matches.keySet()) {
-                if (wpIds.contains(lid.getId())) {
-                    pageId = lid.getId();
-                    break;
-                }
-            }
-            if (pageId >= 0) {
-                numMatches++;
-                writer.write(pageId + "\t" + tokens[1] + "\n");
+        final AtomicInteger numLines = new AtomicInteger();
+        final AtomicInteger numMatches = new AtomicInteger();
+        final long start = System.currentTimeMillis();
+        numCacheHits.set(0);
+        numTableHits.set(0);
+
+        ParallelTransformIterator<String, String> rows = new ParallelTransformIterator<String, String>(
+                new LineIterator(reader),
+                new Transformer<String, String>() {
+                    public String transform(String line) {
+                        String [] tokens = line.split("\t", 2);
+                        int pageId;
+                        try {
+                            pageId = resolve(tokens[0]);
+                        } catch (DaoException e) {
+                            throw new RuntimeException("Error when resolving " + tokens[0], e);
+                        }
+                        if (pageId >= 0) {
+                            numMatches.incrementAndGet();
+                        }
+                        int n = numLines.incrementAndGet();
+                        if (n % 100000 == 0) {
+                            logProgress(n, numMatches.get(), start);
+                        }
+                        return (pageId >= 0) ? pageId + "\t" + tokens[1] + "\n" : null;
+                    }
+                },
+                numThreads, true, reader);
+
+        try {
+            while (rows.hasNext()) {
+                writer.write(rows.next());
             }
+        } finally {
+            rows.close();
+            writer.close();
         }
+        logProgress(numLines.get(), numMatches.get(), start);
+    }
 
-        System.err.println("matched " + numMatches + " out of " + numLines);
-
-        reader.close();
-        writer.close();
+    private void logProgress(int numLines, int numMatches, long start) {
+        double seconds = Math.max(0.001, (System.currentTimeMillis() - start) / 1000.0);
+        LOG.info(String.format("matched %d and missed %d of %d rows (%.0f rows per second, %.1f%% phrase table hits, %.1f%% phrase cache hits)",
+                numMatches, numLines - numMatches, numLines, numLines / seconds,
+                100.0 * numTableHits.get() / Math.max(1, numLines),
+                100.0 * numCacheHits.get() / Math.max(1, numLines)));
     }
 
     public static void main(String args[]) throws ConfigurationException, IOException, DaoException {
@@ -111,6 +216,22 @@ public class DomainSpecificLayer {
                         .withDescription("Wikipedia id mapping file")
                         .create("w"));
 
+        // Specify the number of threads used to resolve phrases
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("jobs")
+                        .withDescription("threads used to resolve phrases")
+                        .create("j"));
+
+        // Specify a precomputed phrase table
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("phrases")
+                        .withDescription("phrase table file, built from the id mapping if it does not exist")
+                        .create("p"));
+
         EnvBuilder.addStandardOptions(options);
 
 
@@ -129,6 +250,12 @@ public class DomainSpecificLayer {
 
         DomainSpecificLayer dsl = new DomainSpecificLayer(env, env.getDefaultLanguage(),
                                                           new File(cmd.getOptionValue("w")));
+        if (cmd.hasOption("j")) {
+            dsl.setNumThreads(Integer.valueOf(cmd.getOptionValue("j")));
+        }
+        if (cmd.hasOption("p")) {
+            dsl.loadPhraseTable(new File(cmd.getOptionValue("p")));
+        }
         dsl.createLayer(new File(cmd.getOptionValue("i")),
                         new File(cmd.getOptionValue("o")));
     }
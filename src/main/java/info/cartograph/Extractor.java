@@ -4,18 +4,22 @@ import org.apache.commons.cli.*;
 import org.joda.time.DateTime;
 import org.joda.time.Hours;
 import org.joda.time.Interval;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.DefaultOptionBuilder;
 import org.wikibrain.core.WikiBrainException;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.cmd.EnvBuilder;
 import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.LocalLinkDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.pageview.PageViewDao;
 import org.wikibrain.sr.SRBuilder;
 import org.wikibrain.sr.SRMetric;
 import org.wikibrain.utils.WpIOUtils;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.BufferedWriter;
 import java.io.File;
@@ -26,11 +30,19 @@ import java.util.*;
  * @author Shilad Sen
  */
 public class Extractor {
+    private static final Logger LOG = LoggerFactory.getLogger(Extractor.class);
+    private static final int RECALL_SAMPLE_SIZE = 100;
+    private static final int NEIGHBORS_EF = 100;
 
     private final Map<String, Integer> id2Index;
     private final Env env;
     private final Language lang;
     private final Iterable<CartographVector> vectorIter;
+    private DatasetWriter.Format format = DatasetWriter.Format.TSV;
+    private String reduction = null;
+    private int reducedDimensions = 0;
+    private VectorQuantizer.Type quantization = VectorQuantizer.Type.FLOAT32;
+    private int numNeighbors = 0;
 
     public Extractor(Env env, Language lang, Iterable<CartographVector> vectorIter) throws ConfigurationException, DaoException {
         this.env = env;
@@ -39,15 +51,84 @@ public class Extractor {
         this.id2Index = new HashMap<String, Integer>();
     }
 
+    public void setFormat(DatasetWriter.Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Sets the encoding of vectors in binary output.
+     */
+    public void setQuantization(VectorQuantizer.Type quantization) {
+        this.quantization = quantization;
+    }
+
+    /**
+     * Reduces every vector before it is written. PCA is fit during the write
+     * pass, so the source is still only read once.
+     *
+     * @param method "random", "pca", or null for no reduction.
+     */
+    public void setReduction(String method, int dimensions) {
+        this.reduction = method;
+        this.reducedDimensions = dimensions;
+    }
+
+    /**
+     * If positive, an HNSW index is built over the written vectors.
+     * The index is saved to neighbors.hnsw, and the approximate nearest
+     * neighbors of each page are written to neighbors.tsv.
+     */
+    public void setNumNeighbors(int numNeighbors) {
+        this.numNeighbors = numNeighbors;
+    }
+
     public void writeAll(String dir) throws IOException, DaoException {
-        List<CartographVector> vectors = new ArrayList<CartographVector>();
-        for (CartographVector cv : vectorIter) {
-            if (cv != null) {
-                vectors.add(cv);
+        StreamingDatasetWriter writer = new StreamingDatasetWriter(new File(dir), format, quantization);
+        HnswIndex index = null;
+        Iterator<CartographVector> source = vectorIter.iterator();
+        try {
+            Iterator<CartographVector> iter = (reduction == null)
+                    ? source
+                    : VectorReducers.reduce(source, reduction, reducedDimensions, new File(dir));
+            while (iter.hasNext()) {
+                CartographVector v = iter.next();
+                if (v != null) {
+                    int denseIndex = writer.write(v);
+                    if (numNeighbors > 0 && denseIndex > 0) {
+                        if (index == null) {
+                            index = new HnswIndex(v.getVector().length);
+                        }
+                        index.add(denseIndex, v.getVector());
+                    }
+                }
+            }
+        } finally {
+            ParallelTransformIterator.close(source);
+        }
+        writer.close();
+        if (index != null) {
+            writeNeighbors(index, new File(dir));
+        }
+    }
+
+    private void writeNeighbors(HnswIndex index, File dir) throws IOException {
+        int numThreads = WpThreadUtils.getMaxThreads();
+        index.build(numThreads);
+        index.save(new File(dir, "neighbors.hnsw"));
+        LOG.info("Estimated recall@{} of the HNSW index is {}",
+                numNeighbors, index.recall(RECALL_SAMPLE_SIZE, numNeighbors, NEIGHBORS_EF));
+
+        int neighbors[][] = index.allNeighbors(numNeighbors, NEIGHBORS_EF, numThreads);
+        BufferedWriter w = WpIOUtils.openWriter(new File(dir, "neighbors.tsv"));
+        w.write("id\tneighbors\n");
+        for (int i = 0; i < neighbors.length; i++) {
+            w.write(index.getId(i) + "");
+            for (int n : neighbors[i]) {
+                w.write("\t" + n);
             }
+            w.write("\n");
         }
-        DatasetWriter writer = new DatasetWriter(vectors);
-        writer.writeAll(new File(dir));
+        w.close();
     }
 
     public static void main(String args[]) throws ConfigurationException, InterruptedException, WikiBrainException, DaoException, IOException {
@@ -85,6 +166,68 @@ public class Extractor {
                         .withDescription("hours worth of page views")
                         .create("r"));
 
+        // Specify the number of threads used to parse the vector file
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("jobs")
+                        .withDescription("threads used to parse the WMF vector file and load page views")
+                        .create("j"));
+
+        // Allow parsed vectors to be written out of file order
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("unordered")
+                        .withDescription("write WMF vectors in the order they are parsed")
+                        .create("u"));
+
+        // Specify the output format for vectors, popularity and links
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("format")
+                        .withDescription("output format: tsv, binary or both")
+                        .create("f"));
+
+        // Specify the encoding of binary vectors
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("quantize")
+                        .withDescription("binary vector encoding: float32, float16 or int8 (implies binary format; not allowed with tsv)")
+                        .create("q"));
+
+        // Optionally build a nearest neighbor index
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("neighbors")
+                        .withDescription("number of approximate nearest neighbors to write per page")
+                        .create("n"));
+
+        // Optionally reduce the dimensionality of the vectors
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("reduce")
+                        .withDescription("dimensionality reduction: random or pca")
+                        .create("p"));
+
+        // Specify the number of dimensions after reduction
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("dims")
+                        .withDescription("number of dimensions after reduction (default 50)")
+                        .create("k"));
+
+        // Optionally skip the link graph
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("no-links")
+                        .withDescription("write pages without their links, skipping the link graph")
+                        .create("x"));
+
         EnvBuilder.addStandardOptions(options);
 
 
@@ -102,10 +245,45 @@ public class Extractor {
 
         String output = cmd.hasOption("o") ? cmd.getOptionValue("o") : ".";
 
-        PagePopularity pop = new PagePopularity(env, lang);
+        // Quantized vectors are only written in the binary format
+        DatasetWriter.Format format = null;
+        if (cmd.hasOption("f")) {
+            format = DatasetWriter.Format.valueOf(cmd.getOptionValue("f").toUpperCase());
+        } else if (cmd.hasOption("q")) {
+            format = DatasetWriter.Format.BINARY;
+        }
+        if (cmd.hasOption("q") && !format.hasBinary()) {
+            System.err.println("--quantize requires --format binary or both");
+            new HelpFormatter().printHelp("SRBuilder", options);
+            return;
+        }
+
+        // Ensure enough page views are loaded, before popularity summarizes them
+        PageViewDao pvd = env.getComponent(PageViewDao.class);
+        Map<Language, SortedSet<DateTime>> loaded = pvd.getLoadedHours();
+        int toLoad = cmd.hasOption("r") ? Integer.valueOf(cmd.getOptionValue("r")) : 5;
+        if (loaded.containsKey(lang)) {
+            toLoad -= loaded.get(lang).size();
+        }
+        if (toLoad > 0) {
+            pvd.ensureLoaded(selectRandomIntervals(toLoad), new LanguageSet(lang));
+        }
+
+        PagePopularity pop = cmd.hasOption("j")
+                ? new PagePopularity(env, lang, Integer.valueOf(cmd.getOptionValue("j")))
+                : new PagePopularity(env, lang);
+        LinkGraph links = cmd.hasOption("x")
+                ? LinkGraph.empty()
+                : LinkGraph.build(lang, env.getComponent(LocalLinkDao.class));
         Iterable<CartographVector> iter;
         if (cmd.hasOption("v")) {
-            iter = new WMFPageNavVectorizer(env, lang, pop, new File(cmd.getOptionValue("v")));
+            WMFPageNavVectorizer wmf = new WMFPageNavVectorizer(env, lang, pop, new File(cmd.getOptionValue("v")));
+            wmf.setLinkGraph(links);
+            if (cmd.hasOption("j")) {
+                wmf.setNumThreads(Integer.valueOf(cmd.getOptionValue("j")));
+            }
+            wmf.setPreserveOrder(!cmd.hasOption("u"));
+            iter = wmf;
         } else {
             // Build word2vec if necessary
             String metric = cmd.hasOption("m") ? cmd.getOptionValue("m") : "prebuiltword2vec";
@@ -114,27 +292,31 @@ public class Extractor {
             builder.setSkipBuiltMetrics(true);
             builder.build();
 
-            // Ensure enough page views are loaded
-            PageViewDao pvd = env.getComponent(PageViewDao.class);
-            Map<Language, SortedSet<DateTime>> loaded = pvd.getLoadedHours();
-            int toLoad = cmd.hasOption("r") ? Integer.valueOf(cmd.getOptionValue("r")) : 5;
-            if (loaded.containsKey(lang)) {
-                toLoad -= loaded.get(lang).size();
-            }
-            if (toLoad > 0) {
-                pvd.ensureLoaded(selectRandomIntervals(toLoad), new LanguageSet(lang));
-            }
-
             SRMetric sr = env.getComponent(SRMetric.class, metric, lang);
-            iter = new SRVectorizer(env, pop, sr);
+            SRVectorizer srv = new SRVectorizer(env, pop, sr);
+            srv.setLinkGraph(links);
+            iter = srv;
         }
         Extractor ext = new Extractor(env, lang, iter);
+        if (format != null) {
+            ext.setFormat(format);
+        }
+        if (cmd.hasOption("q")) {
+            ext.setQuantization(VectorQuantizer.Type.valueOf(cmd.getOptionValue("q").toUpperCase()));
+        }
+        if (cmd.hasOption("n")) {
+            ext.setNumNeighbors(Integer.valueOf(cmd.getOptionValue("n")));
+        }
+        if (cmd.hasOption("p")) {
+            int dims = cmd.hasOption("k") ? Integer.valueOf(cmd.getOptionValue("k")) : 50;
+            ext.setReduction(cmd.getOptionValue("p"), dims);
+        }
         ext.writeAll(output);
 
     }
 
 
-        private static List<Interval> selectRandomIntervals(int n) {
+        static List<Interval> selectRandomIntervals(int n) {
             DateTime startInterval = new DateTime(2016, 1, 1, 0, 0);
             DateTime endInterval = new DateTime(2016, 7, 1, 0, 0);
             Interval interval = new Interval(startInterval, endInterval);
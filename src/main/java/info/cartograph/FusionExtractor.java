@@ -0,0 +1,207 @@
+package info.cartograph;
+
+import org.apache.commons.cli.*;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.DefaultOptionBuilder;
+import org.wikibrain.core.WikiBrainException;
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.cmd.EnvBuilder;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.LocalLinkDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.pageview.PageViewDao;
+import org.wikibrain.sr.SRBuilder;
+import org.wikibrain.sr.SRMetric;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+/**
+ * Writes a dataset whose vectors fuse any combination of WMF navigation
+ * vectors and dense SR metrics, e.g. word2vec and ESA, using VectorFusion.
+ *
+ * @author Shilad Sen
+ */
+public class FusionExtractor {
+    private static final Logger LOG = LoggerFactory.getLogger(FusionExtractor.class);
+
+    public static void main(String args[]) throws ConfigurationException, InterruptedException, WikiBrainException, DaoException, IOException {
+        Options options = new Options();
+
+        // Specify the Metrics
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("metrics")
+                        .withDescription("comma separated list of dense SR metrics to fuse")
+                        .create("m"));
+
+        // Specify the output directory
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("output")
+                        .withDescription("output directory")
+                        .create("o"));
+
+        // Specify the WMF vectors
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("vectors")
+                        .withDescription("WMF vector file to fuse")
+                        .create("v"));
+
+        // Specify the weight of each source
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("weights")
+                        .withDescription("comma separated weights: the WMF vectors first, then each metric")
+                        .create("w"));
+
+        // Specify how each source is normalized
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("normalize")
+                        .withDescription("normalization for every source: unit or none")
+                        .create("z"));
+
+        // Specify the minimum number of hours worth of pageviews
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("hours")
+                        .withDescription("hours worth of page views")
+                        .create("r"));
+
+        // Specify the output format for vectors, popularity and links
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("format")
+                        .withDescription("output format: tsv, binary or both")
+                        .create("f"));
+
+        // Optionally skip the link graph
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("no-links")
+                        .withDescription("write pages without their links, skipping the link graph")
+                        .create("x"));
+
+        // Specify the number of threads used to load page views
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("jobs")
+                        .withDescription("threads used to load page views")
+                        .create("j"));
+
+        EnvBuilder.addStandardOptions(options);
+
+
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println("Invalid option usage: " + e.getMessage());
+            new HelpFormatter().printHelp("FusionExtractor", options);
+            return;
+        }
+        Env env = new EnvBuilder(cmd).build();
+        Language lang = env.getDefaultLanguage();
+
+        String output = cmd.hasOption("o") ? cmd.getOptionValue("o") : ".";
+        List<String> metrics = new ArrayList<String>();
+        if (cmd.hasOption("m")) {
+            for (String m : cmd.getOptionValue("m").split(",")) {
+                metrics.add(m.trim());
+            }
+        }
+        int numSources = metrics.size() + (cmd.hasOption("v") ? 1 : 0);
+        if (numSources == 0) {
+            System.err.println("At least one of --vectors or --metrics is required");
+            new HelpFormatter().printHelp("FusionExtractor", options);
+            return;
+        }
+        double weights[] = new double[numSources];
+        for (int i = 0; i < numSources; i++) {
+            weights[i] = 1.0;
+        }
+        if (cmd.hasOption("w")) {
+            String tokens[] = cmd.getOptionValue("w").split(",");
+            if (tokens.length != numSources) {
+                System.err.println("Expected " + numSources + " weights, found " + tokens.length);
+                return;
+            }
+            for (int i = 0; i < numSources; i++) {
+                weights[i] = Double.valueOf(tokens[i].trim());
+            }
+        }
+        VectorFusion.Normalization normalization = cmd.hasOption("z")
+                ? VectorFusion.Normalization.valueOf(cmd.getOptionValue("z").toUpperCase())
+                : VectorFusion.Normalization.UNIT;
+
+        // Build the SR metrics if necessary
+        for (String metric : metrics) {
+            SRBuilder builder = new SRBuilder(env, metric, lang);
+            builder.setDeleteExistingData(false);
+            builder.setSkipBuiltMetrics(true);
+            builder.build();
+        }
+
+        // Ensure enough page views are loaded
+        PageViewDao pvd = env.getComponent(PageViewDao.class);
+        Map<Language, SortedSet<DateTime>> loaded = pvd.getLoadedHours();
+        int toLoad = cmd.hasOption("r") ? Integer.valueOf(cmd.getOptionValue("r")) : 5;
+        if (loaded.containsKey(lang)) {
+            toLoad -= loaded.get(lang).size();
+        }
+        if (toLoad > 0) {
+            pvd.ensureLoaded(Extractor.selectRandomIntervals(toLoad), new LanguageSet(lang));
+        }
+
+        PagePopularity pop = cmd.hasOption("j")
+                ? new PagePopularity(env, lang, Integer.valueOf(cmd.getOptionValue("j")))
+                : new PagePopularity(env, lang);
+        // Fused vectors take their links from the first source, so only it needs the link graph
+        LinkGraph links = cmd.hasOption("x")
+                ? LinkGraph.empty()
+                : LinkGraph.build(lang, env.getComponent(LocalLinkDao.class));
+        File tmpDir = new File(output, "fusion-tmp");
+        VectorFusion fusion = new VectorFusion(tmpDir);
+        int source = 0;
+        if (cmd.hasOption("v")) {
+            WMFPageNavVectorizer wmf = new WMFPageNavVectorizer(env, lang, pop, new File(cmd.getOptionValue("v")));
+            wmf.setLinkGraph(links);
+            links = LinkGraph.empty();
+            fusion.addSource(wmf, weights[source++], normalization);
+        }
+        for (String metric : metrics) {
+            SRVectorizer srv = new SRVectorizer(env, pop, env.getComponent(SRMetric.class, metric, lang));
+            srv.setLinkGraph(links);
+            srv.setSortedByPageId(true);
+            links = LinkGraph.empty();
+            fusion.addSortedSource(srv, weights[source++], normalization);
+        }
+
+        LOG.info("Fusing {} sources into {}", numSources, output);
+        Extractor ext = new Extractor(env, lang, fusion);
+        if (cmd.hasOption("f")) {
+            ext.setFormat(DatasetWriter.Format.valueOf(cmd.getOptionValue("f").toUpperCase()));
+        }
+        ext.writeAll(output);
+        tmpDir.delete();
+    }
+}
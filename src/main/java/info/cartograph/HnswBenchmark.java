@@ -0,0 +1,46 @@
+package info.cartograph;
+
+import java.util.Random;
+
+/**
+ * Measures HnswIndex build time, search time and recall against brute force
+ * on synthetic clustered vectors.
+ *
+ * @author Shilad Sen
+ */
+public class HnswBenchmark {
+    private static final int NUM_VECTORS = 100000;
+    private static final int NUM_CLUSTERS = 1000;
+    private static final int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    public static void main(String args[]) {
+        for (int dims : new int[] { 50, 100, 200 }) {
+            Random random = new Random(dims);
+            float centers[][] = new float[NUM_CLUSTERS][dims];
+            for (float center[] : centers) {
+                for (int i = 0; i < dims; i++) {
+                    center[i] = (float) random.nextGaussian();
+                }
+            }
+            HnswIndex index = new HnswIndex(dims);
+            for (int n = 0; n < NUM_VECTORS; n++) {
+                float center[] = centers[random.nextInt(NUM_CLUSTERS)];
+                float v[] = new float[dims];
+                for (int i = 0; i < dims; i++) {
+                    v[i] = center[i] + (float) (0.5 * random.nextGaussian());
+                }
+                index.add(n + 1, v);
+            }
+            long t0 = System.nanoTime();
+            index.build(NUM_THREADS);
+            long t1 = System.nanoTime();
+            index.allNeighbors(10, 50, NUM_THREADS);
+            long t2 = System.nanoTime();
+            System.err.format("dims %d: build %.1fs, 10-NN for all vectors %.1fs\n",
+                    dims, (t1 - t0) / 1e9, (t2 - t1) / 1e9);
+            for (int ef : new int[] { 10, 50, 100 }) {
+                System.err.format("dims %d: recall@10 with ef %d is %.3f\n", dims, ef, index.recall(200, 10, ef));
+            }
+        }
+    }
+}
@@ -0,0 +1,613 @@
+package info.cartograph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An approximate nearest neighbor index over cosine similarity, using a
+ * hierarchical navigable small world (HNSW) graph.
+ *
+ * Vectors are identified by the dense indices assigned by the dataset writers.
+ * They are unitized when added, so cosine distance is one minus a dot product.
+ * The graph is built in parallel. Each node's neighbor lists are guarded by
+ * that node's lock, and the entry point by the index's lock.
+ *
+ * Vectors are stored in blocks of a power of two nodes, each block holding
+ * at most MAX_BLOCK_FLOATS values, so the index is not limited to 2^31
+ * floats in total. A node's vector starts at
+ * blocks[node >> blockShift][(node & blockMask) * dimensions].
+ *
+ * The persisted format is a big-endian stream of: magic, version, size,
+ * dimensions, M, entry point, max level, then for each node its id, vector,
+ * level and the neighbors on each level.
+ *
+ * @author Shilad Sen
+ */
+public class HnswIndex {
+    private static final Logger LOG = LoggerFactory.getLogger(HnswIndex.class);
+    private static final int MAGIC = 0x484e5357;
+    private static final int VERSION = 1;
+
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 100;
+    private static final int MAX_BLOCK_FLOATS = 1 << 24;
+    private static final int INITIAL_BLOCK_NODES = 1024;
+
+    private final int dimensions;
+    private final int m;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final int blockShift;
+    private final int blockMask;
+
+    private int size = 0;
+    private int[] ids;
+    private float[][] blocks = new float[0][];
+
+    // links[node][level] holds the neighbor count followed by the neighbors
+    private int[] levels;
+    private int[][][] links;
+    private volatile int entryPoint = -1;
+    private volatile int maxLevel = -1;
+
+    private final ThreadLocal<int[]> visited = new ThreadLocal<int[]>();
+    private final ThreadLocal<int[]> visitStamp = new ThreadLocal<int[]>();
+
+    public HnswIndex(int dimensions) {
+        this(dimensions, DEFAULT_M, DEFAULT_EF_CONSTRUCTION);
+    }
+
+    /**
+     * @param m Maximum neighbors per node on upper levels. Level 0 allows 2 * m.
+     * @param efConstruction Size of the candidate list while building.
+     */
+    public HnswIndex(int dimensions, int m, int efConstruction) {
+        this.dimensions = dimensions;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.levelMultiplier = 1.0 / Math.log(m);
+        this.blockShift = Integer.numberOfTrailingZeros(Integer.highestOneBit(Math.max(1, MAX_BLOCK_FLOATS / dimensions)));
+        this.blockMask = (1 << blockShift) - 1;
+        this.ids = new int[INITIAL_BLOCK_NODES];
+    }
+
+    /**
+     * Adds a vector to the index. Vectors must be added before build() is called.
+     */
+    public void add(int id, float[] vector) {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException("Expected vector of length " + dimensions + ", found " + vector.length);
+        }
+        if (size == Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("HNSW index is full at " + size + " vectors");
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, (int) Math.min(size * 2L, Integer.MAX_VALUE - 8));
+        }
+        int block = size >> blockShift;
+        int offset = offset(size);
+        if (block == blocks.length) {
+            blocks = Arrays.copyOf(blocks, block + 1);
+            blocks[block] = new float[Math.min(INITIAL_BLOCK_NODES, blockMask + 1) * dimensions];
+        } else if (offset == blocks[block].length) {
+            blocks[block] = Arrays.copyOf(blocks[block], Math.min(offset * 2, (blockMask + 1) * dimensions));
+        }
+        ids[size] = id;
+        VectorKernels.unitizeInto(vector, blocks[block], offset);
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Returns the id of the i-th vector added to the index.
+     */
+    public int getId(int i) {
+        return ids[i];
+    }
+
+    /**
+     * Links all added vectors into the graph using the given number of threads.
+     */
+    public void build(int numThreads) {
+        LOG.info("Building HNSW index over {} vectors with {} threads", size, numThreads);
+        ids = Arrays.copyOf(ids, size);
+        if (size > 0) {
+            int last = (size - 1) >> blockShift;
+            blocks = Arrays.copyOf(blocks, last + 1);
+            blocks[last] = Arrays.copyOf(blocks[last], offset(size - 1) + dimensions);
+        }
+        levels = new int[size];
+        links = new int[size][][];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            levels[i] = (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+            links[i] = new int[levels[i] + 1][];
+            for (int level = 0; level <= levels[i]; level++) {
+                links[i][level] = new int[maxNeighbors(level) + 1];
+            }
+        }
+        if (size == 0) {
+            return;
+        }
+        entryPoint = 0;
+        maxLevel = levels[0];
+        final AtomicInteger numInserted = new AtomicInteger();
+        ParallelForEach.range(1, size, numThreads, new Procedure<Integer>() {
+            public void call(Integer node) throws Exception {
+                insert(node);
+                if (numInserted.incrementAndGet() % 100000 == 0) {
+                    LOG.info("Inserted {} of {} vectors into HNSW index", numInserted.get(), size);
+                }
+            }
+        });
+    }
+
+    private int maxNeighbors(int level) {
+        return (level == 0) ? 2 * m : m;
+    }
+
+    private void insert(int node) {
+        int level = levels[node];
+        int ep;
+        int top;
+        synchronized (this) {
+            ep = entryPoint;
+            top = maxLevel;
+        }
+        float vector[] = blocks[node >> blockShift];
+        int offset = offset(node);
+
+        // Greedy descent through the levels above the node's level
+        for (int l = top; l > level; l--) {
+            ep = greedy(vector, offset, ep, l);
+        }
+
+        for (int l = Math.min(level, top); l >= 0; l--) {
+            Heap candidates = searchLayer(vector, offset, ep, efConstruction, l);
+            int selected[] = selectNeighbors(candidates, maxNeighbors(l));
+            for (int neighbor : selected) {
+                if (neighbor == node) {
+                    continue;
+                }
+                // Other threads may already have linked to this node, so append rather than overwrite
+                connect(node, neighbor, l);
+                connect(neighbor, node, l);
+            }
+            ep = candidates.closest();
+        }
+
+        if (level > top) {
+            synchronized (this) {
+                if (level > maxLevel) {
+                    maxLevel = level;
+                    entryPoint = node;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a link from node to neighbor, pruning node's list if it is full.
+     */
+    private void connect(int node, int neighbor, int level) {
+        synchronized (links[node]) {
+            int list[] = links[node][level];
+            int n = list[0];
+            for (int i = 1; i <= n; i++) {
+                if (list[i] == neighbor) {
+                    return;
+                }
+            }
+            if (n < list.length - 1) {
+                list[n + 1] = neighbor;
+                list[0] = n + 1;
+                return;
+            }
+            Heap candidates = new Heap(n + 1, true);
+            float vector[] = blocks[node >> blockShift];
+            int offset = offset(node);
+            for (int i = 1; i <= n; i++) {
+                candidates.push(distance(vector, offset, list[i]), list[i]);
+            }
+            candidates.push(distance(vector, offset, neighbor), neighbor);
+            int selected[] = selectNeighbors(candidates, list.length - 1);
+            list[0] = selected.length;
+            System.arraycopy(selected, 0, list, 1, selected.length);
+        }
+    }
+
+    /**
+     * Picks up to max neighbors from the candidates using the HNSW heuristic.
+     * A candidate is kept only if it is closer to the query than to any
+     * neighbor kept so far, which spreads neighbors in different directions.
+     */
+    private int[] selectNeighbors(Heap candidates, int max) {
+        int sorted[] = candidates.sortedIds();
+        float dists[] = candidates.sortedDistances();
+        int selected[] = new int[Math.min(max, sorted.length)];
+        int n = 0;
+        for (int i = 0; i < sorted.length && n < max; i++) {
+            int c = sorted[i];
+            boolean keep = true;
+            for (int j = 0; j < n; j++) {
+                if (distance(blocks[c >> blockShift], offset(c), selected[j]) < dists[i]) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[n++] = c;
+            }
+        }
+        return Arrays.copyOf(selected, n);
+    }
+
+    private int greedy(float[] query, int offset, int ep, int level) {
+        float best = distance(query, offset, ep);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int neighbor : getNeighbors(ep, level)) {
+                float d = distance(query, offset, neighbor);
+                if (d < best) {
+                    best = d;
+                    ep = neighbor;
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    private int[] getNeighbors(int node, int level) {
+        synchronized (links[node]) {
+            int list[] = links[node][level];
+            return Arrays.copyOfRange(list, 1, list[0] + 1);
+        }
+    }
+
+    /**
+     * Returns up to ef of the closest nodes to the query on a level, as a max heap.
+     */
+    private Heap searchLayer(float[] query, int offset, int ep, int ef, int level) {
+        int stamps[] = visitStamp.get();
+        int seen[] = visited.get();
+        if (seen == null || seen.length < size) {
+            seen = new int[size];
+            stamps = new int[] { 0 };
+            visited.set(seen);
+            visitStamp.set(stamps);
+        }
+        int stamp = ++stamps[0];
+        if (stamp == Integer.MAX_VALUE) {
+            Arrays.fill(seen, 0);
+            stamps[0] = stamp = 1;
+        }
+
+        Heap candidates = new Heap(ef * 2, false);
+        Heap results = new Heap(ef + 1, true);
+        float d = distance(query, offset, ep);
+        candidates.push(d, ep);
+        results.push(d, ep);
+        seen[ep] = stamp;
+        while (candidates.size() > 0) {
+            float cd = candidates.topDistance();
+            int c = candidates.pop();
+            if (cd > results.topDistance() && results.size() >= ef) {
+                break;
+            }
+            for (int neighbor : getNeighbors(c, level)) {
+                if (seen[neighbor] == stamp) {
+                    continue;
+                }
+                seen[neighbor] = stamp;
+                float nd = distance(query, offset, neighbor);
+                if (results.size() < ef || nd < results.topDistance()) {
+                    candidates.push(nd, neighbor);
+                    results.push(nd, neighbor);
+                    if (results.size() > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Returns the ids of the approximate k nearest neighbors of a vector, closest first.
+     *
+     * @param ef Size of the candidate list. Larger values are slower but more accurate.
+     */
+    public int[] search(float[] vector, int k, int ef) {
+        float query[] = new float[dimensions];
+        VectorKernels.unitizeInto(vector, query, 0);
+        int[] nodes = searchNodes(query, 0, k, ef);
+        int result[] = new int[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            result[i] = ids[nodes[i]];
+        }
+        return result;
+    }
+
+    private int[] searchNodes(float[] query, int offset, int k, int ef) {
+        if (entryPoint < 0) {
+            return new int[0];
+        }
+        int ep = entryPoint;
+        for (int l = maxLevel; l > 0; l--) {
+            ep = greedy(query, offset, ep, l);
+        }
+        Heap results = searchLayer(query, offset, ep, Math.max(ef, k), 0);
+        int sorted[] = results.sortedIds();
+        return Arrays.copyOf(sorted, Math.min(k, sorted.length));
+    }
+
+    /**
+     * Returns the ids of the approximate k nearest neighbors of every vector
+     * in the index, excluding the vector itself, in the order vectors were added.
+     */
+    public int[][] allNeighbors(final int k, final int ef, int numThreads) {
+        final int result[][] = new int[size][];
+        ParallelForEach.range(0, size, numThreads, new Procedure<Integer>() {
+            public void call(Integer node) throws Exception {
+                int nodes[] = searchNodes(blocks[node >> blockShift], offset(node), k + 1, ef);
+                int neighbors[] = new int[Math.min(k, nodes.length)];
+                int n = 0;
+                for (int i = 0; i < nodes.length && n < neighbors.length; i++) {
+                    if (nodes[i] != node) {
+                        neighbors[n++] = ids[nodes[i]];
+                    }
+                }
+                result[node] = Arrays.copyOf(neighbors, n);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Estimates recall@k against a brute force search over the index,
+     * using a random sample of the indexed vectors as queries.
+     */
+    public double recall(int sampleSize, int k, int ef) {
+        Random random = new Random(0);
+        int found = 0, total = 0;
+        for (int s = 0; s < Math.min(sampleSize, size); s++) {
+            int node = random.nextInt(size);
+            float vector[] = blocks[node >> blockShift];
+            int offset = offset(node);
+            Heap exact = new Heap(k + 1, true);
+            for (int other = 0; other < size; other++) {
+                float d = distance(vector, offset, other);
+                if (exact.size() < k || d < exact.topDistance()) {
+                    exact.push(d, other);
+                    if (exact.size() > k) {
+                        exact.pop();
+                    }
+                }
+            }
+            int approx[] = searchNodes(vector, offset, k, ef);
+            int truth[] = exact.sortedIds();
+            Arrays.sort(truth);
+            for (int a : approx) {
+                if (Arrays.binarySearch(truth, a) >= 0) {
+                    found++;
+                }
+            }
+            total += truth.length;
+        }
+        return (total == 0) ? 1.0 : found * 1.0 / total;
+    }
+
+    /**
+     * Returns the offset of a node's vector within its block.
+     */
+    private int offset(int node) {
+        return (node & blockMask) * dimensions;
+    }
+
+    private float distance(float[] query, int offset, int node) {
+        float data[] = blocks[node >> blockShift];
+        int base = offset(node);
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        for (; i + 3 < dimensions; i += 4) {
+            s0 += query[offset + i] * data[base + i];
+            s1 += query[offset + i + 1] * data[base + i + 1];
+            s2 += query[offset + i + 2] * data[base + i + 2];
+            s3 += query[offset + i + 3] * data[base + i + 3];
+        }
+        for (; i < dimensions; i++) {
+            s0 += query[offset + i] * data[base + i];
+        }
+        return 1.0f - ((s0 + s1) + (s2 + s3));
+    }
+
+    public void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(size);
+        out.writeInt(dimensions);
+        out.writeInt(m);
+        out.writeInt(entryPoint);
+        out.writeInt(maxLevel);
+        for (int node = 0; node < size; node++) {
+            out.writeInt(ids[node]);
+            float vector[] = blocks[node >> blockShift];
+            int offset = offset(node);
+            for (int i = 0; i < dimensions; i++) {
+                out.writeFloat(vector[offset + i]);
+            }
+            out.writeInt(levels[node]);
+            for (int level = 0; level <= levels[node]; level++) {
+                int list[] = links[node][level];
+                for (int i = 0; i <= list[0]; i++) {
+                    out.writeInt(list[i]);
+                }
+            }
+        }
+        out.close();
+    }
+
+    public static HnswIndex load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not an HNSW index: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported HNSW index version " + version + " in " + file);
+            }
+            int size = in.readInt();
+            int dimensions = in.readInt();
+            HnswIndex index = new HnswIndex(dimensions, in.readInt(), DEFAULT_EF_CONSTRUCTION);
+            index.entryPoint = in.readInt();
+            index.maxLevel = in.readInt();
+            index.size = size;
+            index.ids = new int[size];
+            int numBlocks = (size == 0) ? 0 : ((size - 1) >> index.blockShift) + 1;
+            index.blocks = new float[numBlocks][];
+            for (int b = 0; b < numBlocks; b++) {
+                int nodes = Math.min(index.blockMask + 1, size - (b << index.blockShift));
+                index.blocks[b] = new float[nodes * dimensions];
+            }
+            index.levels = new int[size];
+            index.links = new int[size][][];
+            for (int node = 0; node < size; node++) {
+                index.ids[node] = in.readInt();
+                float vector[] = index.blocks[node >> index.blockShift];
+                int offset = index.offset(node);
+                for (int i = 0; i < dimensions; i++) {
+                    vector[offset + i] = in.readFloat();
+                }
+                int levels = index.levels[node] = in.readInt();
+                index.links[node] = new int[levels + 1][];
+                for (int level = 0; level <= levels; level++) {
+                    int list[] = new int[index.maxNeighbors(level) + 1];
+                    list[0] = in.readInt();
+                    for (int i = 1; i <= list[0]; i++) {
+                        list[i] = in.readInt();
+                    }
+                    index.links[node][level] = list;
+                }
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A binary heap of (distance, node) pairs, ordered by distance.
+     */
+    private static class Heap {
+        private final boolean max;
+        private float[] dists;
+        private int[] nodes;
+        private int size = 0;
+
+        Heap(int capacity, boolean max) {
+            this.max = max;
+            this.dists = new float[Math.max(capacity, 4)];
+            this.nodes = new int[dists.length];
+        }
+
+        int size() {
+            return size;
+        }
+
+        float topDistance() {
+            return dists[0];
+        }
+
+        private boolean above(int i, int j) {
+            return max ? dists[i] > dists[j] : dists[i] < dists[j];
+        }
+
+        private void swap(int i, int j) {
+            float d = dists[i]; dists[i] = dists[j]; dists[j] = d;
+            int n = nodes[i]; nodes[i] = nodes[j]; nodes[j] = n;
+        }
+
+        void push(float dist, int node) {
+            if (size == dists.length) {
+                dists = Arrays.copyOf(dists, size * 2);
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            dists[size] = dist;
+            nodes[size] = node;
+            int i = size++;
+            while (i > 0 && above(i, (i - 1) / 2)) {
+                swap(i, (i - 1) / 2);
+                i = (i - 1) / 2;
+            }
+        }
+
+        int pop() {
+            int top = nodes[0];
+            swap(0, --size);
+            int i = 0;
+            while (true) {
+                int l = 2 * i + 1, r = l + 1, best = i;
+                if (l < size && above(l, best)) best = l;
+                if (r < size && above(r, best)) best = r;
+                if (best == i) break;
+                swap(i, best);
+                i = best;
+            }
+            return top;
+        }
+
+        private long[] sorted() {
+            // Distances are non-negative floats (up to rounding), so their bits sort like the values
+            long packed[] = new long[size];
+            for (int i = 0; i < size; i++) {
+                packed[i] = ((long) Float.floatToIntBits(Math.max(0.0f, dists[i])) << 32) | nodes[i];
+            }
+            Arrays.sort(packed);
+            return packed;
+        }
+
+        int[] sortedIds() {
+            long packed[] = sorted();
+            int result[] = new int[packed.length];
+            for (int i = 0; i < packed.length; i++) {
+                result[i] = (int) packed[i];
+            }
+            return result;
+        }
+
+        float[] sortedDistances() {
+            long packed[] = sorted();
+            float result[] = new float[packed.length];
+            for (int i = 0; i < packed.length; i++) {
+                result[i] = Float.intBitsToFloat((int) (packed[i] >>> 32));
+            }
+            return result;
+        }
+
+        int closest() {
+            int best = 0;
+            for (int i = 1; i < size; i++) {
+                if (dists[i] < dists[best]) best = i;
+            }
+            return nodes[best];
+        }
+    }
+}
@@ -14,6 +14,7 @@ import org.wikibrain.core.WikiBrainException;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.cmd.EnvBuilder;
 import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.LocalLinkDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.pageview.PageViewDao;
@@ -34,50 +35,120 @@ public class JointExtractor {
     private static final Logger LOG = LoggerFactory.getLogger(SRVectorizer.class);
 
 
-    private final Map<String, Integer> id2Index;
+    private final TIntIntMap id2Index;
     private final Env env;
     private final Language lang;
     private final Iterable<CartographVector> vectorIter;
     private final Iterable<CartographVector> jointVectorIter;
+    private String reduction = null;
+    private int reducedDimensions = 0;
 
     public JointExtractor(Env env, Language lang, Iterable<CartographVector> vectorIter, Iterable<CartographVector> jointIter) throws ConfigurationException, DaoException {
         this.env = env;
         this.lang = lang;
         this.vectorIter = vectorIter;
         this.jointVectorIter = jointIter;
-        this.id2Index = new HashMap<String, Integer>();
+        this.id2Index = new TIntIntHashMap();
+    }
+
+    /**
+     * Reduces joint vectors before they are written. PCA is fit during the
+     * write pass, so the joint vectors are still only computed once.
+     *
+     * @param method "random", "pca", or null for no reduction.
+     */
+    public void setReduction(String method, int dimensions) {
+        this.reduction = method;
+        this.reducedDimensions = dimensions;
     }
 
     public void writeAll(String dir) throws IOException, DaoException {
         readIds(dir + "/ids.tsv");
-        List<CartographVector> vectors = new ArrayList<CartographVector>();
-
-        vectors.clear();
+        BufferedWriter w = WpIOUtils.openWriter(dir + "/joint-vectors.tsv");
+        w.write("id\tvector\n");
         int i = 0;
-        for (CartographVector cv : jointVectorIter) {
+        Iterator<CartographVector> iter = jointVectorIter.iterator();
+        if (reduction != null) {
+            iter = VectorReducers.reduce(iter, reduction, reducedDimensions, new File(dir));
+        }
+        while (iter.hasNext()) {
+            CartographVector cv = iter.next();
             if (cv != null) {
-                vectors.add(cv);
-                assert(id2Index.containsKey(cv.getId()));
+                assert(id2Index.containsKey(cv.getIntId()));
+                if (id2Index.containsKey(cv.getIntId())) {
+                    writeVector(w, id2Index.get(cv.getIntId()), cv);
+                }
             }
             if (i++ % 10000 == 0) {
                 LOG.info("Loading joint vectors for page " + i);
             }
         }
-        writeVectors(vectors, dir + "/joint-vectors.tsv");
+        w.close();
+    }
+
+    /**
+     * Writes the base dataset and joint-vectors.tsv in a single pass over
+     * the WMF file, without needing an earlier Extractor run. Each row is
+     * written as soon as its WMF and SR vectors have been joined, so the
+     * base dataset only contains pages that have both.
+     */
+    public void writeCombined(String dir, JointVectorizer vectorizer) throws IOException, DaoException {
+        StreamingDatasetWriter writer = new StreamingDatasetWriter(new File(dir));
+        BufferedWriter w = WpIOUtils.openWriter(dir + "/joint-vectors.tsv");
+        w.write("id\tvector\n");
+        Iterator<CartographVector[]> iter = vectorizer.pairIterator();
+        ReductionSpool spool = (reduction == null)
+                ? null
+                : new ReductionSpool(reduction, reducedDimensions, VectorReducers.DEFAULT_SAMPLE_SIZE, new File(dir));
+        int i = 0;
+        try {
+            while (iter.hasNext()) {
+                CartographVector pair[] = iter.next();
+                if (pair != null) {
+                    int index = writer.write(pair[0]);
+                    if (index > 0) {
+                        id2Index.put(pair[1].getIntId(), index);
+                        if (spool == null) {
+                            writeVector(w, index, pair[1]);
+                        } else {
+                            spool.add(pair[1]);
+                        }
+                    }
+                }
+                if (i++ % 10000 == 0) {
+                    LOG.info("Writing joint vectors for page " + i);
+                }
+            }
+        } finally {
+            ParallelTransformIterator.close(iter);
+        }
+        writer.close();
+
+        // Reduced joint vectors can only be written once the reducer is fit to the whole pass
+        if (spool != null) {
+            Iterator<CartographVector> reduced = spool.reduced();
+            while (reduced.hasNext()) {
+                CartographVector cv = reduced.next();
+                writeVector(w, id2Index.get(cv.getIntId()), cv);
+            }
+        }
+        w.close();
     }
 
+    private void writeVector(BufferedWriter w, int index, CartographVector cv) throws IOException {
+        w.write(index + "");
+        for (float x : cv.getVector()) {
+            w.write("\t" + Float.toString(x));
+        }
+        w.write("\n");
+    }
 
     public void writeVectors(List<CartographVector> vectors, String pathVectors) throws IOException, DaoException {
         BufferedWriter w = WpIOUtils.openWriter(pathVectors);
         w.write("id\tvector\n");
         for (CartographVector cv : vectors) {
-            if (id2Index.containsKey(cv.getId())) {
-                int index = id2Index.get(cv.getId());
-                w.write(index + "");
-                for (float x : cv.getVector()) {
-                    w.write("\t" + Float.toString(x));
-                }
-                w.write("\n");
+            if (id2Index.containsKey(cv.getIntId())) {
+                writeVector(w, id2Index.get(cv.getIntId()), cv);
             }
         }
         w.close();
@@ -92,7 +163,7 @@ public class JointExtractor {
                 break;
             }
             String tokens[] = line.split("\\s+");
-            id2Index.put(tokens[1], Integer.valueOf(tokens[0]));
+            id2Index.put(Integer.valueOf(tokens[1]), Integer.valueOf(tokens[0]));
         }
     }
 
@@ -124,6 +195,20 @@ public class JointExtractor {
                         .isRequired()
                         .create("v"));
 
+        // Write the base dataset in the same pass as the joint vectors
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("combined")
+                        .withDescription("write the base dataset and joint vectors in one pass")
+                        .create("s"));
+
+        // Read the SR matrix sequentially instead of looking up rows
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("merge-join")
+                        .withDescription("merge-join WMF vectors against the SR matrix in page id order")
+                        .create("g"));
+
         // Specify the minimum number of hours worth of pageviews
         options.addOption(
                 new DefaultOptionBuilder()
@@ -132,6 +217,30 @@ public class JointExtractor {
                         .withDescription("hours worth of page views")
                         .create("r"));
 
+        // Optionally reduce the dimensionality of the vectors
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("reduce")
+                        .withDescription("dimensionality reduction: random or pca")
+                        .create("p"));
+
+        // Specify the number of dimensions after reduction
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("dims")
+                        .withDescription("number of dimensions after reduction (default 50)")
+                        .create("k"));
+
+        // Specify the number of threads used to load page views
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .withLongOpt("jobs")
+                        .withDescription("threads used to load page views")
+                        .create("j"));
+
         EnvBuilder.addStandardOptions(options);
 
 
@@ -166,13 +275,31 @@ public class JointExtractor {
         if (toLoad > 0) {
             pvd.ensureLoaded(selectRandomIntervals(toLoad), new LanguageSet(lang));
         }
-        PagePopularity pop = new PagePopularity(env, lang);
+        PagePopularity pop = cmd.hasOption("j")
+                ? new PagePopularity(env, lang, Integer.valueOf(cmd.getOptionValue("j")))
+                : new PagePopularity(env, lang);
         SRMetric sr = env.getComponent(SRMetric.class, metric, lang);
-        Iterable<CartographVector> basicIter = new SRVectorizer(env, pop, sr);
+        // Links are only written with the base dataset
+        LinkGraph links = cmd.hasOption("s")
+                ? LinkGraph.build(lang, env.getComponent(LocalLinkDao.class))
+                : LinkGraph.empty();
+        SRVectorizer basicIter = new SRVectorizer(env, pop, sr);
+        basicIter.setLinkGraph(links);
 
-        Iterable<CartographVector> jointIter = new JointVectorizer(env, lang, new File(cmd.getOptionValue("v")), pop, sr);
+        JointVectorizer jointIter = new JointVectorizer(env, lang, new File(cmd.getOptionValue("v")), pop, sr);
+        jointIter.setLinkGraph(links);
         JointExtractor ext = new JointExtractor(env, lang, basicIter, jointIter);
-        ext.writeAll(output);
+        jointIter.setMergeJoin(cmd.hasOption("g"));
+        jointIter.setTmpDir(new File(output));
+        if (cmd.hasOption("p")) {
+            int dims = cmd.hasOption("k") ? Integer.valueOf(cmd.getOptionValue("k")) : 50;
+            ext.setReduction(cmd.getOptionValue("p"), dims);
+        }
+        if (cmd.hasOption("s")) {
+            ext.writeCombined(output, jointIter);
+        } else {
+            ext.writeAll(output);
+        }
 
     }
 
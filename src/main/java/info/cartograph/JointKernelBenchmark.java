@@ -0,0 +1,82 @@
+package info.cartograph;
+
+import java.util.Random;
+
+/**
+ * Compares the fused normalize and concatenate kernel in VectorKernels
+ * against the separate unitize / arraycopy steps it replaced in
+ * JointVectorizer, on random vector pairs.
+ *
+ * @author Shilad Sen
+ */
+public class JointKernelBenchmark {
+    private static final int NUM_PAIRS = 100000;
+    private static final int NUM_ROUNDS = 10;
+
+    public static void main(String args[]) {
+        for (int dims : new int[] { 100, 200, 300 }) {
+            float a[][] = makeVectors(dims);
+            float b[][] = makeVectors(dims);
+            double sum = 0.0;
+            for (int round = 0; round < NUM_ROUNDS; round++) {
+                long t0 = System.nanoTime();
+                sum += concatWithCopies(a, b);
+                long t1 = System.nanoTime();
+                sum += concatFused(a, b);
+                long t2 = System.nanoTime();
+                System.err.format("dims %d, round %d: copies %.1f ns/pair, fused %.1f ns/pair\n",
+                        dims, round, (t1 - t0) * 1.0 / NUM_PAIRS, (t2 - t1) * 1.0 / NUM_PAIRS);
+            }
+            System.err.println("checksum " + sum);
+        }
+    }
+
+    private static float[][] makeVectors(int dims) {
+        Random random = new Random();
+        float result[][] = new float[NUM_PAIRS][dims];
+        for (float v[] : result) {
+            for (int i = 0; i < dims; i++) {
+                v[i] = (float) random.nextGaussian();
+            }
+        }
+        return result;
+    }
+
+    private static double concatWithCopies(float a[][], float b[][]) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            float v1[] = a[i].clone();
+            float v2[] = b[i].clone();
+            unitize(v1);
+            unitize(v2);
+            float v[] = new float[v1.length + v2.length];
+            System.arraycopy(v1, 0, v, 0, v1.length);
+            System.arraycopy(v2, 0, v, v1.length, v2.length);
+            sum += v[v.length - 1];
+        }
+        return sum;
+    }
+
+    private static double concatFused(float a[][], float b[][]) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            float v[] = VectorKernels.concatUnitized(a[i], b[i]);
+            sum += v[v.length - 1];
+        }
+        return sum;
+    }
+
+    private static void unitize(float []vector) {
+        double sum = 0.0;
+        for (float x : vector) {
+            sum += x * x;
+        }
+        if (sum == 0.0) {
+            return;
+        }
+        double norm = Math.sqrt(sum);
+        for (int i =0; i < vector.length; i++) {
+            vector[i] /= norm;
+        }
+    }
+}
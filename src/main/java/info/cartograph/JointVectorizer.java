@@ -1,5 +1,7 @@
 package info.cartograph;
 
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.set.TIntSet;
 import org.apache.commons.collections15.Transformer;
@@ -12,12 +14,10 @@ import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalLinkDao;
-import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.dao.UniversalPageDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.core.model.LocalLink;
-import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.matrix.DenseMatrix;
 import org.wikibrain.matrix.DenseMatrixRow;
 import org.wikibrain.sr.SRMetric;
@@ -25,11 +25,14 @@ import org.wikibrain.sr.vector.DenseVectorSRMetric;
 import org.wikibrain.utils.WpIOUtils;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -44,7 +47,9 @@ public class JointVectorizer implements Iterable<CartographVector> {
     private final Env env;
     private final Language lang;
     private final PagePopularity pop;
-    private final LocalPageDao pageDao;
+    private LinkGraph linkGraph = null;
+    private boolean mergeJoin = false;
+    private File tmpDir = null;
     private final LocalLinkDao linkDao;
     private final File file;
     private final UniversalPageDao univDao;
@@ -52,7 +57,7 @@ public class JointVectorizer implements Iterable<CartographVector> {
     private final DenseVectorSRMetric metric;
     private final DenseMatrix matrix;
     private final TIntSet validIds;
-    private int vectorLength = -1;
+    private VectorLineParser parser = null;
 
     public JointVectorizer(Env env, Language lang, File file, PagePopularity pop, SRMetric metric) throws ConfigurationException, DaoException {
         this(env, lang, file, pop, metric, null);
@@ -67,40 +72,125 @@ public class JointVectorizer implements Iterable<CartographVector> {
         this.matrix = ((DenseVectorSRMetric) metric).getGenerator().getFeatureMatrix();
         this.univDao = env.getComponent(UniversalPageDao.class);
         this.concept2Id = univDao.getAllUnivToLocalIdsMap(new LanguageSet(lang)).get(lang);
-        this.pageDao = env.getComponent(LocalPageDao.class);
         this.linkDao = env.getComponent(LocalLinkDao.class);
         this.pop = pop;
     }
 
+    /**
+     * Reads outgoing links from a preloaded link graph instead of
+     * querying the link dao for each page.
+     */
+    public void setLinkGraph(LinkGraph linkGraph) {
+        this.linkGraph = linkGraph;
+    }
+
+    /**
+     * If true, the SR matrix is read sequentially and merge-joined against
+     * WMF rows sorted by page id, instead of looking up a matrix row for
+     * each WMF row. Pages are then returned in matrix order. A text WMF
+     * file is first converted to a temporary VectorCache.
+     */
+    public void setMergeJoin(boolean mergeJoin) {
+        this.mergeJoin = mergeJoin;
+    }
+
+    /**
+     * Sets the directory the temporary VectorCache for a merge-join is written to.
+     * Defaults to the directory holding the WMF file.
+     */
+    public void setTmpDir(File tmpDir) {
+        this.tmpDir = tmpDir;
+    }
+
     public Iterator<CartographVector> iterator() {
+        return new TransformIterator<CartographVector[], CartographVector>(
+                pairIterator(),
+                new Transformer<CartographVector[], CartographVector>() {
+                    public CartographVector transform(CartographVector[] pair) {
+                        return (pair == null) ? null : pair[1];
+                    }
+                }
+        );
+    }
+
+    /**
+     * Iterates over pages in a single pass, returning a pair for each page
+     * with both a WMF vector and an SR vector. The first element is the
+     * base vector holding the raw WMF vector, as the WMF vectorizer would
+     * create it. The second is the joint vector. Pages that could not be
+     * joined are returned as null.
+     *
+     * A merge-join over a text WMF file returns a Closeable iterator, which
+     * deletes its temporary vector cache when it is exhausted or closed.
+     */
+    public Iterator<CartographVector[]> pairIterator() {
         BufferedReader reader;
         try {
+            if (mergeJoin) {
+                if (VectorCache.isCache(file)) {
+                    return mergeJoinIterator(new VectorCache(file));
+                }
+                return convertAndMergeJoin();
+            }
+            if (VectorCache.isCache(file)) {
+                return cacheIterator(new VectorCache(file));
+            }
             reader = WpIOUtils.openBufferedReader(file);
+            parser = VectorLineParser.forHeader(reader.readLine());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        final AtomicInteger lineNum = new AtomicInteger();
-        return new TransformIterator<String, CartographVector>(
+        final AtomicInteger lineNum = new AtomicInteger(1);
+        return new TransformIterator<String, CartographVector[]>(
                 new LineIterator(reader),
-                new Transformer<String, CartographVector>() {
-                    public CartographVector transform(String line) {
+                new Transformer<String, CartographVector[]>() {
+                    public CartographVector[] transform(String line) {
                         int n = lineNum.getAndIncrement();
                         if (n % 100000 == 0) {
                             LOG.info("Processing line " + n);
                         }
-                        // Read header header
-                        if (vectorLength < 0) {
-                            vectorLength = Integer.valueOf(line.split("\\s+")[1]);
-                        } else {
-                            try {
-                                return makeVector(line);
-                            } catch (DaoException e) {
-                                LOG.warn("Error when processing line " +
-                                        StringEscapeUtils.escapeJavaScript(line), e);
-                            } catch (IOException e) {
-                                LOG.warn("Error when processing line " +
-                                        StringEscapeUtils.escapeJavaScript(line), e);
+                        try {
+                            return makePair(line);
+                        } catch (DaoException e) {
+                            LOG.warn("Error when processing line " +
+                                    StringEscapeUtils.escapeJavaScript(line), e);
+                        } catch (IOException e) {
+                            LOG.warn("Error when processing line " +
+                                    StringEscapeUtils.escapeJavaScript(line), e);
+                        }
+                        return null;
+                    }
+                }
+        );
+    }
+
+    /**
+     * Reads WMF vectors from a memory-mapped binary cache created by VectorCache.
+     */
+    private Iterator<CartographVector[]> cacheIterator(final VectorCache cache) {
+        return new TransformIterator<Integer, CartographVector[]>(
+                cache.rows(),
+                new Transformer<Integer, CartographVector[]>() {
+                    public CartographVector[] transform(Integer row) {
+                        if (row % 100000 == 0) {
+                            LOG.info("Processing row " + row);
+                        }
+                        int pageId = getPageId(cache.getItemId(row));
+                        if (pageId < 0) {
+                            return null;
+                        }
+                        try {
+                            DenseMatrixRow srRow = matrix.getRow(pageId);
+                            if (srRow == null) {
+                                return null;
                             }
+                            float v1[] = new float[cache.getDimensions()];
+                            cache.getRow(row, v1, 0);
+                            return makePair(pageId, v1, srRow);
+                        } catch (DaoException e) {
+                            LOG.warn("Error when processing row " + row, e);
+                        } catch (IOException e) {
+                            LOG.warn("Error when processing row " + row, e);
                         }
                         return null;
                     }
@@ -108,76 +198,209 @@ public class JointVectorizer implements Iterable<CartographVector> {
         );
     }
 
-    protected CartographVector makeVector(String line) throws DaoException, IOException {
-        String tokens[] = line.trim().split(" ");
-        if (tokens.length == 0) {
-            LOG.warn("Empty line encountered!");
-            return null;
+    /**
+     * Converts the text WMF file to a temporary vector cache and merge-joins it.
+     */
+    private Iterator<CartographVector[]> convertAndMergeJoin() throws IOException {
+        File dir = (tmpDir != null) ? tmpDir : file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory()) dir.mkdirs();
+        final File cacheFile = File.createTempFile("wmf-vectors", ".bin", dir);
+        cacheFile.deleteOnExit();
+        LOG.info("Converting {} to temporary vector cache {}. Run VectorCache once to prebuild a reusable cache.",
+                file, cacheFile);
+        final Iterator<CartographVector[]> iter;
+        try {
+            VectorCache.convert(file, cacheFile);
+            iter = mergeJoinIterator(new VectorCache(cacheFile));
+        } catch (IOException e) {
+            cacheFile.delete();
+            throw e;
         }
-        assert(vectorLength > 0);
-        if (tokens.length - 1 != vectorLength) {
-            LOG.warn("Invalid vector length for {}. Expected {}, found {}.",
-                    tokens[0], vectorLength, tokens.length - 1);
-            return null;
+        return new TempCacheIterator(iter, cacheFile);
+    }
+
+    /**
+     * Deletes a temporary vector cache once the iterator over it is exhausted or closed.
+     */
+    private static class TempCacheIterator implements Iterator<CartographVector[]>, Closeable {
+        private final Iterator<CartographVector[]> iter;
+        private File cacheFile;
+
+        TempCacheIterator(Iterator<CartographVector[]> iter, File cacheFile) {
+            this.iter = iter;
+            this.cacheFile = cacheFile;
         }
 
-        String strId = tokens[0];
-        if (strId.length() == 0 || !strId.startsWith("Q")) {
-            return null;
+        public boolean hasNext() {
+            if (cacheFile == null) {
+                return false;
+            }
+            if (!iter.hasNext()) {
+                close();
+                return false;
+            }
+            return true;
         }
-        int itemId = Integer.valueOf(strId.substring(1));
-        if (!concept2Id.containsKey(itemId)) {
-            return null;
+
+        public CartographVector[] next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return iter.next();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() {
+            if (cacheFile != null) {
+                cacheFile.delete();
+                cacheFile = null;
+            }
+        }
+    }
+
+    /**
+     * Merge-joins the rows of a vector cache against the SR matrix.
+     *
+     * Cache rows are sorted by local page id up front. The matrix is then
+     * iterated sequentially while a cursor advances through the sorted rows.
+     * If the matrix rows are not in ascending order, rows that go backwards
+     * fall back to a binary search.
+     */
+    private Iterator<CartographVector[]> mergeJoinIterator(final VectorCache cache) {
+        // Pack (page id, cache row) into longs so one sort orders both
+        long packed[] = new long[cache.getNumRows()];
+        int n = 0;
+        for (int row = 0; row < cache.getNumRows(); row++) {
+            int pageId = getPageId(cache.getItemId(row));
+            if (pageId >= 0) {
+                packed[n++] = ((long) pageId << 32) | row;
+            }
+        }
+        Arrays.sort(packed, 0, n);
+        final int pageIds[] = new int[n];
+        final int rows[] = new int[n];
+        for (int i = 0; i < n; i++) {
+            pageIds[i] = (int) (packed[i] >>> 32);
+            rows[i] = (int) packed[i];
+        }
+        packed = null;
+        LOG.info("Merge-joining {} WMF rows against the SR matrix", n);
+
+        return new TransformIterator<DenseMatrixRow, CartographVector[]>(
+                matrix.iterator(),
+                new Transformer<DenseMatrixRow, CartographVector[]>() {
+                    private int cursor = 0;
+                    private int lastPageId = Integer.MIN_VALUE;
+                    private int numRows = 0;
+
+                    public CartographVector[] transform(DenseMatrixRow srRow) {
+                        if (++numRows % 100000 == 0) {
+                            LOG.info("Processing matrix row " + numRows);
+                        }
+                        int pageId = srRow.getRowIndex();
+                        int i;
+                        if (pageId >= lastPageId) {
+                            while (cursor < pageIds.length && pageIds[cursor] < pageId) {
+                                cursor++;
+                            }
+                            i = (cursor < pageIds.length && pageIds[cursor] == pageId) ? cursor : -1;
+                        } else {
+                            i = Arrays.binarySearch(pageIds, pageId);
+                        }
+                        lastPageId = Math.max(lastPageId, pageId);
+                        if (i < 0) {
+                            return null;
+                        }
+                        float v1[] = new float[cache.getDimensions()];
+                        cache.getRow(rows[i], v1, 0);
+                        try {
+                            return makePair(pageId, v1, srRow);
+                        } catch (DaoException e) {
+                            LOG.warn("Error when processing page " + pageId, e);
+                        }
+                        return null;
+                    }
+                }
+        );
+    }
+
+    /**
+     * Returns the local page id for a Wikidata item, or -1 if the item
+     * has no page or the page is not one of the valid ids.
+     */
+    private int getPageId(int itemId) {
+        if (itemId < 0 || !concept2Id.containsKey(itemId)) {
+            return -1;
         }
         int pageId = concept2Id.get(itemId);
         if (validIds != null && !validIds.contains(pageId)) {
+            return -1;
+        }
+        return pageId;
+    }
+
+    protected CartographVector makeVector(String line) throws DaoException, IOException {
+        CartographVector pair[] = makePair(line);
+        return (pair == null) ? null : pair[1];
+    }
+
+    protected CartographVector[] makePair(String line) throws DaoException, IOException {
+        int itemId = parser.parseItemId(line);
+        int pageId = getPageId(itemId);
+        if (pageId < 0) {
             return null;
         }
 
-        LocalPage page = pageDao.getById(lang, pageId);
         DenseMatrixRow row = matrix.getRow(pageId);
         if  (row == null) {
             return null;
         }
 
-        float v1[] = new float[vectorLength];
-        for (int i = 0; i < vectorLength; i++) {
-            v1[i] = Float.valueOf(tokens[i+1]);
+        float v1[] = new float[parser.getDimensions()];
+        int n = parser.parseValues(line, v1, 0);
+        if (n != v1.length) {
+            LOG.warn("Invalid vector length for Q{}. Expected {}, found {}.",
+                    itemId, v1.length, n);
+            return null;
         }
-        float v2[] = row.getValues();
-        unitize(v1);
-        unitize(v2);
-
-        float v[] = new float[v1.length + v2.length];
-        System.arraycopy(v1, 0, v, 0, v1.length);
-        System.arraycopy(v2, 0, v, v1.length, v2.length);
+        return makePair(pageId, v1, row);
+    }
 
-        double pp = pop.getPopularity(pageId);
+    protected CartographVector makeVector(int pageId, float v1[], DenseMatrixRow row) throws DaoException {
+        CartographVector pair[] = makePair(pageId, v1, row);
+        return (pair == null) ? null : pair[1];
+    }
 
-        List<String> links = new ArrayList<String>();
-        for (LocalLink ll : linkDao.getLinks(lang, pageId, true)) {
-            links.add("" + ll.getLocalId());
+    protected CartographVector[] makePair(int pageId, float v1[], DenseMatrixRow row) throws DaoException {
+        String title = pop.getTitle(pageId);
+        if (title == null) {
+            return null;
         }
+        double pp = pop.getPopularity(pageId);
+        int links[] = getLinks(pageId);
+        CartographVector base = new CartographVector(title, pageId, links, v1, pp);
 
-        return new CartographVector(
-                page.getTitle().getCanonicalTitle(),
-                "" + pageId,
-                links.toArray(new String[links.size()]),
+        float v[] = VectorKernels.concatUnitized(v1, row.getValues());
+        CartographVector joint = new CartographVector(
+                title,
+                pageId,
+                links,
                 v,
                 pp);
+        return new CartographVector[] { base, joint };
     }
 
-    private static void unitize(float []vector) {
-        double sum = 0.0;
-        for (float x : vector) {
-            sum += x * x;
+    private int[] getLinks(int pageId) throws DaoException {
+        if (linkGraph != null) {
+            return linkGraph.getLinks(pageId);
         }
-        if (sum == 0.0) {
-            return;
-        }
-        double norm = Math.sqrt(sum);
-        for (int i =0; i < vector.length; i++) {
-            vector[i] /= norm;
+        TIntList links = new TIntArrayList();
+        for (LocalLink ll : linkDao.getLinks(lang, pageId, true)) {
+            links.add(ll.getLocalId());
         }
+        return links.toArray();
     }
 }
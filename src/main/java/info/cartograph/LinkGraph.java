@@ -0,0 +1,134 @@
+package info.cartograph;
+
+import gnu.trove.list.array.TLongArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.LocalLinkDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalLink;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An in-memory snapshot of the outgoing links between normal pages in a language.
+ *
+ * Links are stored in CSR form: sources holds the sorted ids of pages with
+ * links, and the targets of sources[i] are the sorted ids
+ * targets[offsets[i]:offsets[i+1]]. The snapshot is built with a single scan
+ * over the link table, which is far cheaper than asking the link dao for the
+ * links of each page. Each link is packed into a long with its source in the
+ * high bits, so sorting the packed links in place groups them by source.
+ *
+ * getLinks copies a page's links. Callers that only read them can use
+ * indexOf, getStart, getEnd and getTarget instead.
+ *
+ * @author Shilad Sen
+ */
+public class LinkGraph implements Serializable {
+    private static final Logger LOG = LoggerFactory.getLogger(LinkGraph.class);
+    private static final int[] EMPTY = new int[0];
+
+    private final int[] sources;
+    private final int[] offsets;
+    private final int[] targets;
+
+    private LinkGraph(int[] sources, int[] offsets, int[] targets) {
+        this.sources = sources;
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    public static LinkGraph build(Language lang, LocalLinkDao linkDao) throws DaoException {
+        LOG.info("Loading link graph for {}", lang);
+        TLongArrayList links = new TLongArrayList();
+        for (LocalLink ll : linkDao.get(DaoFilter.normalPageFilter(lang))) {
+            if (ll.getSourceId() < 0 || ll.getDestId() < 0) {
+                continue;
+            }
+            links.add(((long) ll.getSourceId() << 32) | ll.getDestId());
+            if (links.size() % 10000000 == 0) {
+                LOG.info("Loaded {} links", links.size());
+            }
+        }
+        links.sort();
+
+        // Count the distinct sources, then fill the presized arrays in one pass
+        int n = 0;
+        for (int i = 0; i < links.size(); i++) {
+            if (i == 0 || (links.get(i) >>> 32) != (links.get(i - 1) >>> 32)) {
+                n++;
+            }
+        }
+        int sources[] = new int[n];
+        int offsets[] = new int[n + 1];
+        int targets[] = new int[links.size()];
+        int s = -1;
+        for (int i = 0; i < links.size(); i++) {
+            long link = links.get(i);
+            int source = (int) (link >>> 32);
+            if (s < 0 || source != sources[s]) {
+                sources[++s] = source;
+                offsets[s] = i;
+            }
+            targets[i] = (int) link;
+        }
+        offsets[n] = targets.length;
+        LOG.info("Loaded link graph with {} links from {} pages", targets.length, n);
+        return new LinkGraph(sources, offsets, targets);
+    }
+
+    /**
+     * Returns a graph without links, for callers that do not write links.
+     */
+    public static LinkGraph empty() {
+        return new LinkGraph(EMPTY, new int[1], EMPTY);
+    }
+
+    /**
+     * Returns the ids of the pages a page links to, or an empty array if it has no links.
+     */
+    public int[] getLinks(int pageId) {
+        int i = indexOf(pageId);
+        if (i < 0) {
+            return EMPTY;
+        }
+        return Arrays.copyOfRange(targets, offsets[i], offsets[i + 1]);
+    }
+
+    /**
+     * Returns the index of a page with links, or -1 if the page has no links.
+     */
+    public int indexOf(int pageId) {
+        int i = Arrays.binarySearch(sources, pageId);
+        return (i < 0) ? -1 : i;
+    }
+
+    /**
+     * Returns the position of the first target of the page with the given index.
+     */
+    public int getStart(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Returns the position after the last target of the page with the given index.
+     */
+    public int getEnd(int index) {
+        return offsets[index + 1];
+    }
+
+    public int getTarget(int position) {
+        return targets[position];
+    }
+
+    public int getNumPages() {
+        return sources.length;
+    }
+
+    public int getNumLinks() {
+        return targets.length;
+    }
+}
@@ -1,9 +1,15 @@
 package info.cartograph;
 
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
 import org.joda.time.DateTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,16 +17,20 @@ import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalLinkDao;
+import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.dao.MetaInfoDao;
 import org.wikibrain.core.dao.sql.SqlCache;
 import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalLink;
+import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.pageview.PageViewDao;
 import org.wikibrain.pageview.PageViewSqlDao;
 import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
 
 import java.io.File;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 
@@ -28,66 +38,200 @@ import java.util.SortedSet;
  * @author Shilad Sen
  */
 public class PagePopularity {
-    private static final String MEDIAN_VIEWS_KEY = "median_views";
+    private static final String VIEW_SKETCHES_KEY = "view_sketches";
+    private static final String SNAPSHOT_KEY = "page_snapshot";
+    private static final int DEFAULT_NUM_THREADS = 8;
     private static final Logger LOG = LoggerFactory.getLogger(PagePopularity.class);
     private final PageViewDao viewDao;
     private final Env env;
     private final Language lang;
+    private final int numThreads;
     private final TIntIntMap views;
     private final LocalLinkDao linkDao;
     private final MetaInfoDao metaDao;
+    private final LocalPageDao pageDao;
+    private final SqlCache cache;
+    private final PageSnapshot snapshot;
+    private long viewsSignature;
 
     public PagePopularity(Env env, Language lang) throws ConfigurationException, DaoException {
+        this(env, lang, DEFAULT_NUM_THREADS);
+    }
+
+    /**
+     * @param numThreads Number of threads used to load hours of page views.
+     */
+    public PagePopularity(Env env, Language lang, int numThreads) throws ConfigurationException, DaoException {
         this.env = env;
+        this.numThreads = numThreads;
         this.lang = lang;
         this.linkDao = env.getComponent(LocalLinkDao.class);
         this.viewDao = env.getComponent(PageViewDao.class);
         this.metaDao = env.getComponent(MetaInfoDao.class);
+        this.pageDao = env.getComponent(LocalPageDao.class);
+        String cachePath = env.getConfiguration().getString("dao.sqlCachePath");
+        this.cache = new SqlCache(metaDao, new File(cachePath));
         this.views = getMedianViews();
+        this.snapshot = loadSnapshot();
     }
 
     public double getPopularity(int id) {
+        int i = snapshot.indexOf(id);
+        if (i >= 0) {
+            return Math.max(1, snapshot.getViews(i)) * snapshot.getPageRank(i);
+        }
         return Math.max(1, views.get(id)) * linkDao.getPageRank(lang, id);
     }
 
-    private TIntIntMap getMedianViews() throws DaoException {
-        String cachePath = env.getConfiguration().getString("dao.sqlCachePath");
-        SqlCache cache = new SqlCache(metaDao, new File(cachePath));
-        TIntIntMap medians = (TIntIntMap) cache.get(MEDIAN_VIEWS_KEY);
-        if (medians != null) {
-            return medians;
+    /**
+     * Returns the canonical title of a page, or null if the page does not exist.
+     * Pages outside the snapshot (e.g. disambiguation pages) fall back to the page dao.
+     */
+    public String getTitle(int id) throws DaoException {
+        int i = snapshot.indexOf(id);
+        if (i >= 0) {
+            return snapshot.getTitle(i);
         }
+        LocalPage page = pageDao.getById(lang, id);
+        return (page == null) ? null : page.getTitle().getCanonicalTitle();
+    }
 
+    public PageSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Loads the snapshot cached for this language, rebuilding it when pages or links have been reloaded.
+     */
+    private PageSnapshot loadSnapshot() throws DaoException {
+        String key = SNAPSHOT_KEY + "_" + lang.getLangCode();
+        PageSnapshot snapshot = (PageSnapshot) cache.get(key, LocalPage.class, LocalLink.class);
+        if (snapshot == null) {
+            snapshot = PageSnapshot.build(lang, pageDao, linkDao, views, viewsSignature);
+            cache.put(key, snapshot);
+        } else if (snapshot.getViewsSignature() != viewsSignature) {
+            LOG.info("Refreshing page snapshot views after new page view hours were loaded");
+            snapshot.setViews(views, viewsSignature);
+            cache.put(key, snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns median views per page. Medians come from the ViewSketches
+     * cached for this language. Only loaded hours that the sketches do not
+     * cover yet are scanned. If hours have been removed since the sketches
+     * were built, they are rebuilt from scratch.
+     */
+    private TIntIntMap getMedianViews() throws DaoException {
         LOG.info("Getting loaded page views.");
         Map<Language, SortedSet<DateTime>> hours = viewDao.getLoadedHours();
-        if (!hours.containsKey(lang) || !hours.containsKey(lang)) {
+        if (!hours.containsKey(lang)) {
             LOG.warn("No page views loaded for language {}", lang);
+            viewsSignature = new ViewSketches(lang).getSignature();
             return new TIntIntHashMap();
         }
-        LOG.info("Loading {} hours worth of page views", hours.get(lang).size());
-        final Map<Integer, TIntList> pageSamples = new HashMap<Integer, TIntList>();
-        ParallelForEach.loop(hours.get(lang), 8, new Procedure<DateTime>() {
+
+        // Sketches are keyed by page id, so they are rebuilt when pages are reloaded
+        String key = VIEW_SKETCHES_KEY + "_" + lang.getLangCode();
+        ViewSketches sketches = (ViewSketches) cache.get(key, LocalPage.class);
+        if (sketches != null && !sketches.isFor(lang)) {
+            LOG.warn("Cached view sketches are for another language; rebuilding them");
+            sketches = null;
+        }
+        if (sketches != null && !covers(hours.get(lang), sketches.getHours())) {
+            LOG.info("Page view hours were removed; rebuilding view sketches");
+            sketches = null;
+        }
+        if (sketches == null) {
+            sketches = new ViewSketches(lang);
+        }
+
+        List<DateTime> newHours = new ArrayList<DateTime>();
+        for (DateTime dt : hours.get(lang)) {
+            if (!sketches.containsHour(dt.getMillis())) {
+                newHours.add(dt);
+            }
+        }
+        if (!newHours.isEmpty()) {
+            LOG.info("Loading {} new hours worth of page views ({} already summarized)",
+                    newHours.size(), sketches.getHours().length);
+            TIntObjectMap<TIntList> pageSamples = loadSamples(newHours);
+            TIntObjectIterator<TIntList> iter = pageSamples.iterator();
+            while (iter.hasNext()) {
+                iter.advance();
+                sketches.merge(iter.key(), iter.value());
+            }
+            long millis[] = new long[newHours.size()];
+            for (int i = 0; i < millis.length; i++) {
+                millis[i] = newHours.get(i).getMillis();
+            }
+            sketches.addHours(millis);
+            cache.put(key, sketches);
+        }
+
+        TIntIntMap medians = sketches.getMedians();
+        viewsSignature = sketches.getSignature();
+        LOG.info("Loaded {} total page views", medians.size());
+        return medians;
+    }
+
+    private static boolean covers(SortedSet<DateTime> loaded, long[] summarized) {
+        TLongSet millis = new TLongHashSet();
+        for (DateTime dt : loaded) {
+            millis.add(dt.getMillis());
+        }
+        return millis.containsAll(summarized);
+    }
+
+    /**
+     * Loads the raw view samples for some hours, keyed by page id.
+     */
+    private TIntObjectMap<TIntList> loadSamples(List<DateTime> hours) {
+        // Each loader thread accumulates samples into its own shard, so no locking is needed
+        final List<TIntObjectMap<TIntList>> shards = new ArrayList<TIntObjectMap<TIntList>>();
+        final ThreadLocal<TIntObjectMap<TIntList>> shard = new ThreadLocal<TIntObjectMap<TIntList>>() {
+            protected TIntObjectMap<TIntList> initialValue() {
+                TIntObjectMap<TIntList> samples = new TIntObjectHashMap<TIntList>();
+                synchronized (shards) {
+                    shards.add(samples);
+                }
+                return samples;
+            }
+        };
+        ParallelForEach.loop(hours, numThreads, new Procedure<DateTime>() {
             public void call(DateTime dt) throws Exception {
                 LOG.info("Loading pageviews for hour {}", dt);
                 TIntIntMap pv = viewDao.getAllViews(lang, dt.minusMinutes(1), dt.plusMinutes(1));
-                synchronized (pageSamples) {
-                    for (int pageId : pv.keys()) {
-                        if (!pageSamples.containsKey(pageId)) {
-                            pageSamples.put(pageId, new TIntArrayList());
-                        }
-                        pageSamples.get(pageId).add(pv.get(pageId));
+                TIntObjectMap<TIntList> samples = shard.get();
+                TIntIntIterator iter = pv.iterator();
+                while (iter.hasNext()) {
+                    iter.advance();
+                    TIntList sample = samples.get(iter.key());
+                    if (sample == null) {
+                        sample = new TIntArrayList(4);
+                        samples.put(iter.key(), sample);
                     }
+                    sample.add(iter.value());
                 }
             }
         }, 1);
-        medians = new TIntIntHashMap();
-        for (int pageId : pageSamples.keySet()) {
-            TIntList sample = pageSamples.get(pageId);
-            sample.sort();
-            medians.put(pageId, sample.get(sample.size() / 2));
+
+        // Merge the shards into the first one
+        TIntObjectMap<TIntList> pageSamples = shards.isEmpty() ? new TIntObjectHashMap<TIntList>() : shards.get(0);
+        for (int i = 1; i < shards.size(); i++) {
+            TIntObjectIterator<TIntList> iter = shards.get(i).iterator();
+            while (iter.hasNext()) {
+                iter.advance();
+                TIntList sample = pageSamples.get(iter.key());
+                if (sample == null) {
+                    pageSamples.put(iter.key(), iter.value());
+                } else {
+                    sample.addAll(iter.value());
+                }
+            }
+            shards.set(i, null);
         }
-        LOG.info("Loaded {} total page views", medians.size());
-        cache.put(MEDIAN_VIEWS_KEY, medians);
-        return medians;
+        return pageSamples;
     }
 }
@@ -0,0 +1,140 @@
+package info.cartograph;
+
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.LocalLinkDao;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An in-memory snapshot of the page metadata needed to build vectors:
+ * PageRank, median views and canonical title for every normal page.
+ *
+ * Everything is stored in parallel primitive arrays sorted by page id,
+ * with titles packed into a single char array, so the snapshot is compact
+ * and cheap to serialize into the SqlCache.
+ *
+ * @author Shilad Sen
+ */
+public class PageSnapshot implements Serializable {
+    private static final Logger LOG = LoggerFactory.getLogger(PageSnapshot.class);
+
+    private final int[] ids;
+    private final double[] pageRanks;
+    private int[] views;
+    private long viewsSignature;
+    private final int[] titleOffsets;
+    private final char[] titles;
+
+    private PageSnapshot(int[] ids, double[] pageRanks, int[] views, long viewsSignature, int[] titleOffsets, char[] titles) {
+        this.ids = ids;
+        this.pageRanks = pageRanks;
+        this.views = views;
+        this.viewsSignature = viewsSignature;
+        this.titleOffsets = titleOffsets;
+        this.titles = titles;
+    }
+
+    /**
+     * Builds a snapshot with a single scan over the normal pages in a language.
+     *
+     * @param viewsSignature Identifies the page view hours the medians were computed from.
+     */
+    public static PageSnapshot build(Language lang, LocalPageDao pageDao, LocalLinkDao linkDao, TIntIntMap medianViews, long viewsSignature) throws DaoException {
+        LOG.info("Building page snapshot for {}", lang);
+        TIntList pageIds = new TIntArrayList();
+        TDoubleList ranks = new TDoubleArrayList();
+        List<String> pageTitles = new ArrayList<String>();
+        for (LocalPage p : pageDao.get(DaoFilter.normalPageFilter(lang))) {
+            pageIds.add(p.getLocalId());
+            ranks.add(linkDao.getPageRank(lang, p.getLocalId()));
+            pageTitles.add(p.getTitle().getCanonicalTitle());
+            if (pageIds.size() % 100000 == 0) {
+                LOG.info("Added page {} to snapshot", pageIds.size());
+            }
+        }
+
+        // Sort everything by page id. Packing (id, position) into a long sorts both at once.
+        int n = pageIds.size();
+        long order[] = new long[n];
+        int titleLength = 0;
+        for (int i = 0; i < n; i++) {
+            order[i] = ((long) pageIds.get(i) << 32) | i;
+            titleLength += pageTitles.get(i).length();
+        }
+        Arrays.sort(order);
+
+        int[] ids = new int[n];
+        double[] pageRanks = new double[n];
+        int[] views = new int[n];
+        int[] titleOffsets = new int[n + 1];
+        char[] titles = new char[titleLength];
+        for (int i = 0; i < n; i++) {
+            int j = (int) order[i];
+            ids[i] = pageIds.get(j);
+            pageRanks[i] = ranks.get(j);
+            views[i] = medianViews.get(ids[i]);
+            String t = pageTitles.get(j);
+            t.getChars(0, t.length(), titles, titleOffsets[i]);
+            titleOffsets[i + 1] = titleOffsets[i] + t.length();
+        }
+        LOG.info("Built page snapshot with {} pages", n);
+        return new PageSnapshot(ids, pageRanks, views, viewsSignature, titleOffsets, titles);
+    }
+
+    /**
+     * Returns the position of a page in the snapshot, or a negative number if it is absent.
+     */
+    public int indexOf(int pageId) {
+        return Arrays.binarySearch(ids, pageId);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int getPageId(int index) {
+        return ids[index];
+    }
+
+    public double getPageRank(int index) {
+        return pageRanks[index];
+    }
+
+    public int getViews(int index) {
+        return views[index];
+    }
+
+    public long getViewsSignature() {
+        return viewsSignature;
+    }
+
+    /**
+     * Replaces the median views column, e.g. after more hours of page views were loaded.
+     */
+    public void setViews(TIntIntMap medianViews, long viewsSignature) {
+        int[] views = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            views[i] = medianViews.get(ids[i]);
+        }
+        this.views = views;
+        this.viewsSignature = viewsSignature;
+    }
+
+    public String getTitle(int index) {
+        return new String(titles, titleOffsets[index], titleOffsets[index + 1] - titleOffsets[index]);
+    }
+}
@@ -0,0 +1,219 @@
+package info.cartograph;
+
+import org.apache.commons.collections15.Transformer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+
+/**
+ * Applies a transformer to the elements of an iterator using a pool of worker threads.
+ *
+ * A single reader thread pulls elements from the source and hands them to the
+ * workers in batches. Results are either returned in source order or in the
+ * order batches complete. At most two batches per worker are in flight at once,
+ * so memory stays bounded no matter how long the source is.
+ *
+ * Null results from the transformer are dropped.
+ *
+ * The iterator closes itself once the source is exhausted or a transform
+ * fails. Callers that may stop early must call close(), which stops the
+ * reader and workers and closes the source.
+ *
+ * @author Shilad Sen
+ */
+public class ParallelTransformIterator<S, T> implements Iterator<T>, Closeable {
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final Iterator<S> source;
+    private final Transformer<S, T> transformer;
+    private final boolean preserveOrder;
+    private final int batchSize;
+    private final ExecutorService workers;
+    private final Closeable resource;
+    private final Thread reader;
+    private final Semaphore inFlight;
+    private final BlockingQueue<FutureTask<List<T>>> completed = new LinkedBlockingQueue<FutureTask<List<T>>>();
+
+    // Marks the end of the source in the completed queue
+    private final FutureTask<List<T>> endOfSource = new FutureTask<List<T>>(new Callable<List<T>>() {
+        public List<T> call() throws Exception {
+            return Collections.emptyList();
+        }
+    });
+
+    private volatile int numSubmitted = 0;
+    private volatile Throwable readerError = null;
+    private volatile boolean cancelled = false;
+    private int numTaken = 0;
+    private boolean sawEnd = false;
+    private Iterator<T> batch = Collections.<T>emptyList().iterator();
+
+    public ParallelTransformIterator(Iterator<S> source, Transformer<S, T> transformer, int numThreads, boolean preserveOrder) {
+        this(source, transformer, numThreads, preserveOrder, DEFAULT_BATCH_SIZE, null);
+    }
+
+    /**
+     * @param resource Closed along with the iterator, or null. Sources that are themselves
+     *                 Closeable are always closed.
+     */
+    public ParallelTransformIterator(Iterator<S> source, Transformer<S, T> transformer, int numThreads, boolean preserveOrder, Closeable resource) {
+        this(source, transformer, numThreads, preserveOrder, DEFAULT_BATCH_SIZE, resource);
+    }
+
+    public ParallelTransformIterator(Iterator<S> source, Transformer<S, T> transformer, int numThreads, boolean preserveOrder, int batchSize, Closeable resource) {
+        this.source = source;
+        this.resource = resource;
+        this.transformer = transformer;
+        this.preserveOrder = preserveOrder;
+        this.batchSize = batchSize;
+        this.inFlight = new Semaphore(numThreads * 2);
+        this.workers = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "parallel-transform-worker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        reader = new Thread(new Runnable() {
+            public void run() {
+                readSource();
+            }
+        }, "parallel-transform-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readSource() {
+        try {
+            while (!cancelled && source.hasNext()) {
+                final List<S> elements = new ArrayList<S>(batchSize);
+                while (elements.size() < batchSize && source.hasNext()) {
+                    elements.add(source.next());
+                }
+                inFlight.acquire();
+                FutureTask<List<T>> task = new FutureTask<List<T>>(new Callable<List<T>>() {
+                    public List<T> call() throws Exception {
+                        List<T> results = new ArrayList<T>(elements.size());
+                        for (S s : elements) {
+                            T t = transformer.transform(s);
+                            if (t != null) {
+                                results.add(t);
+                            }
+                        }
+                        return results;
+                    }
+                }) {
+                    protected void done() {
+                        if (!preserveOrder) completed.add(this);
+                    }
+                };
+                numSubmitted++;
+                if (preserveOrder) completed.add(task);
+                workers.execute(task);
+            }
+        } catch (Throwable e) {
+            if (!cancelled) {
+                readerError = e;
+            }
+        } finally {
+            completed.add(endOfSource);
+        }
+    }
+
+    public boolean hasNext() {
+        while (!batch.hasNext()) {
+            List<T> next = nextBatch();
+            if (next == null) {
+                return false;
+            }
+            batch = next.iterator();
+        }
+        return true;
+    }
+
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return batch.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Returns the next completed batch, or null once the source is exhausted.
+     */
+    private List<T> nextBatch() {
+        try {
+            while (true) {
+                if (cancelled) {
+                    return null;
+                }
+                if (sawEnd && numTaken == numSubmitted) {
+                    close();
+                    if (readerError != null) {
+                        throw new RuntimeException("Reading source failed", readerError);
+                    }
+                    return null;
+                }
+                FutureTask<List<T>> task = completed.take();
+                if (task == endOfSource) {
+                    sawEnd = true;
+                    continue;
+                }
+                numTaken++;
+                inFlight.release();
+                return task.get();
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            close();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops the reader and workers and closes the source. Safe to call more than once.
+     */
+    public void close() {
+        if (cancelled) {
+            return;
+        }
+        cancelled = true;
+        batch = Collections.<T>emptyList().iterator();
+        reader.interrupt();
+        workers.shutdownNow();
+        try {
+            if (source instanceof Closeable) {
+                ((Closeable) source).close();
+            }
+            if (resource != null) {
+                resource.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Closes an iterator if it holds threads or open files, as a ParallelTransformIterator does.
+     */
+    public static void close(Iterator<?> iterator) {
+        if (iterator instanceof Closeable) {
+            try {
+                ((Closeable) iterator).close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
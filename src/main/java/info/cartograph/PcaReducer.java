@@ -0,0 +1,158 @@
+package info.cartograph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reduces vectors by projecting them onto their top principal components.
+ *
+ * Components are estimated from a sample of vectors. The sample covariance
+ * matrix is accumulated and its top eigenvectors are found with randomized
+ * subspace iteration. This is cheap because the covariance matrix is only
+ * dimensions x dimensions.
+ *
+ * @author Shilad Sen
+ */
+public class PcaReducer implements VectorReducer {
+    private static final Logger LOG = LoggerFactory.getLogger(PcaReducer.class);
+    private static final int NUM_ITERATIONS = 20;
+
+    private final float[] mean;
+    private final float[][] components;
+
+    private PcaReducer(float[] mean, float[][] components) {
+        this.mean = mean;
+        this.components = components;
+    }
+
+    /**
+     * Estimates the top principal components of a sample of vectors.
+     */
+    public static PcaReducer fit(List<float[]> sample, int outputDimensions) {
+        if (sample.isEmpty()) {
+            throw new IllegalArgumentException("Cannot fit PCA to an empty sample");
+        }
+        int d = sample.get(0).length;
+        int k = Math.min(outputDimensions, d);
+        LOG.info("Fitting {} principal components to {} vectors of length {}", k, sample.size(), d);
+
+        double mean[] = new double[d];
+        for (float v[] : sample) {
+            for (int i = 0; i < d; i++) {
+                mean[i] += v[i];
+            }
+        }
+        for (int i = 0; i < d; i++) {
+            mean[i] /= sample.size();
+        }
+
+        // Upper triangle of the covariance matrix, mirrored afterwards
+        double cov[][] = new double[d][d];
+        double centered[] = new double[d];
+        for (float v[] : sample) {
+            for (int i = 0; i < d; i++) {
+                centered[i] = v[i] - mean[i];
+            }
+            for (int i = 0; i < d; i++) {
+                double ci = centered[i];
+                double row[] = cov[i];
+                for (int j = i; j < d; j++) {
+                    row[j] += ci * centered[j];
+                }
+            }
+        }
+        for (int i = 0; i < d; i++) {
+            for (int j = i; j < d; j++) {
+                cov[i][j] /= sample.size();
+                cov[j][i] = cov[i][j];
+            }
+        }
+
+        // Subspace iteration: Q <- orthonormalize(C Q)
+        Random random = new Random(0);
+        double q[][] = new double[k][d];
+        for (double[] col : q) {
+            for (int i = 0; i < d; i++) {
+                col[i] = random.nextGaussian();
+            }
+        }
+        orthonormalize(q);
+        for (int iter = 0; iter < NUM_ITERATIONS; iter++) {
+            double z[][] = new double[k][d];
+            for (int c = 0; c < k; c++) {
+                for (int i = 0; i < d; i++) {
+                    double sum = 0.0;
+                    double row[] = cov[i];
+                    for (int j = 0; j < d; j++) {
+                        sum += row[j] * q[c][j];
+                    }
+                    z[c][i] = sum;
+                }
+            }
+            orthonormalize(z);
+            q = z;
+        }
+
+        float fmean[] = new float[d];
+        for (int i = 0; i < d; i++) {
+            fmean[i] = (float) mean[i];
+        }
+        float components[][] = new float[k][d];
+        for (int c = 0; c < k; c++) {
+            for (int i = 0; i < d; i++) {
+                components[c][i] = (float) q[c][i];
+            }
+        }
+        return new PcaReducer(fmean, components);
+    }
+
+    /**
+     * Modified Gram-Schmidt over a set of column vectors.
+     */
+    private static void orthonormalize(double[][] cols) {
+        for (int c = 0; c < cols.length; c++) {
+            for (int p = 0; p < c; p++) {
+                double dot = 0.0;
+                for (int i = 0; i < cols[c].length; i++) {
+                    dot += cols[c][i] * cols[p][i];
+                }
+                for (int i = 0; i < cols[c].length; i++) {
+                    cols[c][i] -= dot * cols[p][i];
+                }
+            }
+            double norm = 0.0;
+            for (double x : cols[c]) {
+                norm += x * x;
+            }
+            norm = Math.sqrt(norm);
+            if (norm > 0.0) {
+                for (int i = 0; i < cols[c].length; i++) {
+                    cols[c][i] /= norm;
+                }
+            }
+        }
+    }
+
+    public int getOutputDimensions() {
+        return components.length;
+    }
+
+    public float[] reduce(float[] vector) {
+        if (vector.length != mean.length) {
+            throw new IllegalArgumentException("Expected vector of length " + mean.length + ", found " + vector.length);
+        }
+        float result[] = new float[components.length];
+        for (int c = 0; c < components.length; c++) {
+            float component[] = components[c];
+            double sum = 0.0;
+            for (int i = 0; i < vector.length; i++) {
+                sum += (vector[i] - mean[i]) * component[i];
+            }
+            result[c] = (float) sum;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,211 @@
+package info.cartograph;
+
+import gnu.trove.set.TIntSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.phrases.PhraseAnalyzer;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A precomputed map from normalized phrases to the pages they refer to,
+ * restricted to a fixed set of pages.
+ *
+ * The table is built by asking a phrase analyzer to describe each page,
+ * which yields the anchor texts that link to it, and adding the page's
+ * canonical title. A phrase that refers to more than one of the pages is
+ * ambiguous and left out, so callers should fall back to the full resolver
+ * for phrases that are not in the table. Every anchor of every page is used
+ * to detect ambiguity, even though only the most common anchors of each
+ * page are kept in the table.
+ *
+ * Phrases are stored as a sorted string array with a parallel array of
+ * page ids, and are looked up with a binary search. The persisted table
+ * starts with the language and a signature of the page ids it was built
+ * for, so a table built for different pages is not mistakenly reused.
+ *
+ * @author Shilad Sen
+ */
+public class PhraseTable {
+    private static final Logger LOG = LoggerFactory.getLogger(PhraseTable.class);
+    private static final int MAGIC = 0x50485254;
+    private static final int VERSION = 2;
+    private static final int AMBIGUOUS = -2;
+
+    private final String langCode;
+    private final long signature;
+    private final String[] phrases;
+    private final int[] pageIds;
+
+    private PhraseTable(String langCode, long signature, String[] phrases, int[] pageIds) {
+        this.langCode = langCode;
+        this.signature = signature;
+        this.phrases = phrases;
+        this.pageIds = pageIds;
+    }
+
+    /**
+     * @param maxPhrases The maximum number of anchor texts kept in the table for each page.
+     */
+    public static PhraseTable build(final Language lang, final LocalPageDao pageDao, final PhraseAnalyzer analyzer,
+                                    TIntSet pageIds, final int maxPhrases, int numThreads) {
+        final int ids[] = pageIds.toArray();
+        final Map<String, Integer> phrase2Page = new HashMap<String, Integer>();
+        final Set<String> kept = new HashSet<String>();
+        final AtomicInteger numDone = new AtomicInteger();
+        ParallelForEach.range(0, ids.length, numThreads, new Procedure<Integer>() {
+            public void call(Integer i) throws Exception {
+                int pageId = ids[i];
+                LocalPage page = pageDao.getById(lang, pageId);
+                if (page == null) {
+                    return;
+                }
+                // All anchors are needed to detect ambiguity, but only the top ones are kept
+                Set<String> normalized = new HashSet<String>();
+                Set<String> top = new HashSet<String>();
+                top.add(normalize(page.getTitle().getCanonicalTitle()));
+                Map<String, Float> described = analyzer.describe(lang, page, Integer.MAX_VALUE);
+                if (described != null) {
+                    int rank = 0;
+                    for (String phrase : described.keySet()) {
+                        String n = normalize(phrase);
+                        normalized.add(n);
+                        if (rank++ < maxPhrases) {
+                            top.add(n);
+                        }
+                    }
+                }
+                normalized.addAll(top);
+                normalized.remove("");
+                synchronized (phrase2Page) {
+                    for (String phrase : normalized) {
+                        Integer existing = phrase2Page.get(phrase);
+                        phrase2Page.put(phrase, (existing == null || existing == pageId) ? pageId : AMBIGUOUS);
+                    }
+                    kept.addAll(top);
+                }
+                if (numDone.incrementAndGet() % 10000 == 0) {
+                    LOG.info("Described {} of {} pages", numDone.get(), ids.length);
+                }
+            }
+        });
+
+        List<String> unique = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : phrase2Page.entrySet()) {
+            if (entry.getValue() != AMBIGUOUS && kept.contains(entry.getKey())) {
+                unique.add(entry.getKey());
+            }
+        }
+        Collections.sort(unique);
+        String phrases[] = unique.toArray(new String[unique.size()]);
+        int tablePageIds[] = new int[phrases.length];
+        for (int i = 0; i < phrases.length; i++) {
+            tablePageIds[i] = phrase2Page.get(phrases[i]);
+        }
+        LOG.info("Built phrase table with {} unambiguous phrases out of {} phrases",
+                phrases.length, phrase2Page.size());
+        return new PhraseTable(lang.getLangCode(), getSignature(pageIds), phrases, tablePageIds);
+    }
+
+    /**
+     * Returns a hash of the sorted page ids that identifies the pages a table was built for.
+     */
+    public static long getSignature(TIntSet pageIds) {
+        int ids[] = pageIds.toArray();
+        Arrays.sort(ids);
+        long signature = ids.length;
+        for (int id : ids) {
+            signature = signature * 1000003L + id;
+        }
+        return signature;
+    }
+
+    /**
+     * Returns true if the table was built for the given language and pages.
+     */
+    public boolean isFor(Language lang, TIntSet pageIds) {
+        return langCode.equals(lang.getLangCode()) && signature == getSignature(pageIds);
+    }
+
+    /**
+     * Lowercases a phrase, treats underscores as spaces and collapses whitespace.
+     */
+    public static String normalize(String phrase) {
+        StringBuilder sb = new StringBuilder(phrase.length());
+        boolean space = false;
+        for (int i = 0; i < phrase.length(); i++) {
+            char c = phrase.charAt(i);
+            if (c == '_' || Character.isWhitespace(c)) {
+                space = sb.length() > 0;
+            } else {
+                if (space) {
+                    sb.append(' ');
+                    space = false;
+                }
+                sb.append(Character.toLowerCase(c));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the page a phrase refers to, or -1 if the phrase is not in the table.
+     */
+    public int get(String phrase) {
+        int i = Arrays.binarySearch(phrases, normalize(phrase));
+        return (i < 0) ? -1 : pageIds[i];
+    }
+
+    public int size() {
+        return phrases.length;
+    }
+
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(langCode);
+        out.writeLong(signature);
+        out.writeInt(phrases.length);
+        for (int i = 0; i < phrases.length; i++) {
+            out.writeUTF(phrases[i]);
+            out.writeInt(pageIds[i]);
+        }
+        out.close();
+    }
+
+    public static PhraseTable read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a phrase table: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported phrase table version " + version + " in " + file);
+            }
+            String langCode = in.readUTF();
+            long signature = in.readLong();
+            int n = in.readInt();
+            String phrases[] = new String[n];
+            int pageIds[] = new int[n];
+            for (int i = 0; i < n; i++) {
+                phrases[i] = in.readUTF();
+                pageIds[i] = in.readInt();
+            }
+            LOG.info("Read phrase table with {} phrases from {}", n, file);
+            return new PhraseTable(langCode, signature, phrases, pageIds);
+        } finally {
+            in.close();
+        }
+    }
+}
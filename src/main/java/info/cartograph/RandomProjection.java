@@ -0,0 +1,52 @@
+package info.cartograph;
+
+import java.util.Random;
+
+/**
+ * Reduces vectors with a Gaussian random projection.
+ *
+ * Entries of the projection matrix are drawn from N(0, 1/k), where k is the
+ * number of output dimensions, so distances are preserved in expectation.
+ *
+ * @author Shilad Sen
+ */
+public class RandomProjection implements VectorReducer {
+    private final int inputDimensions;
+    private final int outputDimensions;
+    private final float[] projection;    // outputDimensions x inputDimensions, row major
+
+    public RandomProjection(int inputDimensions, int outputDimensions) {
+        this(inputDimensions, outputDimensions, 0L);
+    }
+
+    public RandomProjection(int inputDimensions, int outputDimensions, long seed) {
+        this.inputDimensions = inputDimensions;
+        this.outputDimensions = outputDimensions;
+        this.projection = new float[inputDimensions * outputDimensions];
+        Random random = new Random(seed);
+        double scale = 1.0 / Math.sqrt(outputDimensions);
+        for (int i = 0; i < projection.length; i++) {
+            projection[i] = (float) (random.nextGaussian() * scale);
+        }
+    }
+
+    public int getOutputDimensions() {
+        return outputDimensions;
+    }
+
+    public float[] reduce(float[] vector) {
+        if (vector.length != inputDimensions) {
+            throw new IllegalArgumentException("Expected vector of length " + inputDimensions + ", found " + vector.length);
+        }
+        float result[] = new float[outputDimensions];
+        for (int i = 0; i < outputDimensions; i++) {
+            int row = i * inputDimensions;
+            double sum = 0.0;
+            for (int j = 0; j < inputDimensions; j++) {
+                sum += projection[row + j] * vector[j];
+            }
+            result[i] = (float) sum;
+        }
+        return result;
+    }
+}
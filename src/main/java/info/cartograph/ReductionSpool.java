@@ -0,0 +1,115 @@
+package info.cartograph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Collects vectors during a single pass, then reduces them all with a reducer
+ * fit to a uniform sample of the pass.
+ *
+ * Added vectors are spilled to a temporary file in the given directory,
+ * usually the output directory, while a reservoir sample of
+ * sampleSize vectors is kept in memory. Once the pass is over, reduced()
+ * fits the reducer to the sample and streams the spilled vectors back
+ * through it in the order they were added. The spill file is deleted once
+ * the reduced vectors have been read.
+ *
+ * @author Shilad Sen
+ */
+public class ReductionSpool {
+    private static final Logger LOG = LoggerFactory.getLogger(ReductionSpool.class);
+
+    private final String method;
+    private final int dimensions;
+    private final int sampleSize;
+    private final File spill;
+    private final DataOutputStream out;
+    private final List<float[]> sample = new ArrayList<float[]>();
+    private final Random random = new Random(0);
+    private int numVectors = 0;
+
+    /**
+     * @param method "random" for a Gaussian random projection or "pca".
+     * @param tmpDir Directory the spill file is written to.
+     */
+    public ReductionSpool(String method, int dimensions, int sampleSize, File tmpDir) throws IOException {
+        if (!method.equalsIgnoreCase("random") && !method.equalsIgnoreCase("pca")) {
+            throw new IllegalArgumentException("Unknown reduction method: " + method);
+        }
+        this.method = method;
+        this.dimensions = dimensions;
+        this.sampleSize = sampleSize;
+        if (!tmpDir.isDirectory()) tmpDir.mkdirs();
+        this.spill = File.createTempFile("reduction", ".spool", tmpDir);
+        this.spill.deleteOnExit();
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill)));
+    }
+
+    public void add(CartographVector cv) throws IOException {
+        VectorSorter.write(out, cv);
+        numVectors++;
+        if (sample.size() < sampleSize) {
+            sample.add(cv.getVector());
+        } else {
+            int i = random.nextInt(numVectors);
+            if (i < sampleSize) {
+                sample.set(i, cv.getVector());
+            }
+        }
+    }
+
+    public int size() {
+        return numVectors;
+    }
+
+    /**
+     * Fits the reducer and returns the reduced vectors in the order they were added.
+     * No more vectors may be added.
+     */
+    public Iterator<CartographVector> reduced() throws IOException {
+        out.close();
+        if (numVectors == 0) {
+            spill.delete();
+            return new ArrayList<CartographVector>().iterator();
+        }
+        final VectorReducer reducer = VectorReducers.fit(method, dimensions, sample);
+        LOG.info("Reducing {} vectors with {} fit to {} sampled vectors", numVectors, method, sample.size());
+        sample.clear();
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill)));
+        return new Iterator<CartographVector>() {
+            private int remaining = numVectors;
+
+            public boolean hasNext() {
+                return remaining > 0;
+            }
+
+            public CartographVector next() {
+                if (remaining <= 0) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    CartographVector cv = VectorSorter.read(in);
+                    if (--remaining == 0) {
+                        in.close();
+                        spill.delete();
+                    }
+                    return VectorReducers.apply(reducer, cv);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
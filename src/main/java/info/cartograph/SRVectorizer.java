@@ -1,5 +1,8 @@
 package info.cartograph;
 
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
 import org.apache.commons.collections15.Transformer;
 import org.apache.commons.collections15.iterators.TransformIterator;
 import org.slf4j.Logger;
@@ -8,19 +11,22 @@ import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalLinkDao;
-import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalLink;
-import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.matrix.DenseMatrix;
 import org.wikibrain.matrix.DenseMatrixRow;
 import org.wikibrain.sr.SRMetric;
 import org.wikibrain.sr.vector.DenseVectorSRMetric;
+import org.wikibrain.utils.WpIOUtils;
 
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * @author Shilad Sen
@@ -32,7 +38,8 @@ public class SRVectorizer implements Iterable<CartographVector> {
     private final DenseMatrix matrix;
     private final Language lang;
     private final PagePopularity pop;
-    private final LocalPageDao pageDao;
+    private LinkGraph linkGraph = null;
+    private boolean sortedByPageId = false;
     private final LocalLinkDao linkDao;
 
     public SRVectorizer(Env env, PagePopularity pop, SRMetric metric) throws ConfigurationException, DaoException {
@@ -40,12 +47,31 @@ public class SRVectorizer implements Iterable<CartographVector> {
         this.metric = (DenseVectorSRMetric)metric;
         this.lang = metric.getLanguage();
         this.matrix = ((DenseVectorSRMetric) metric).getGenerator().getFeatureMatrix();
-        this.pageDao = env.getComponent(LocalPageDao.class);
         this.linkDao = env.getComponent(LocalLinkDao.class);
         this.pop = pop;
     }
 
+    /**
+     * Reads outgoing links from a preloaded link graph instead of
+     * querying the link dao for each page.
+     */
+    public void setLinkGraph(LinkGraph linkGraph) {
+        this.linkGraph = linkGraph;
+    }
+
+    /**
+     * If true, vectors are returned in ascending page id order by looking up
+     * each matrix row, instead of in the order the rows are stored. This lets
+     * consumers that need sorted vectors, like VectorFusion, stream them.
+     */
+    public void setSortedByPageId(boolean sortedByPageId) {
+        this.sortedByPageId = sortedByPageId;
+    }
+
     public Iterator<CartographVector> iterator() {
+        if (sortedByPageId) {
+            return sortedIterator();
+        }
         return new TransformIterator<DenseMatrixRow, CartographVector>(
                 matrix.iterator(),
                 new Transformer<DenseMatrixRow, CartographVector>() {
@@ -61,28 +87,102 @@ public class SRVectorizer implements Iterable<CartographVector> {
         );
     }
 
+    private Iterator<CartographVector> sortedIterator() {
+        final int pageIds[] = Arrays.copyOf(matrix.getRowIds(), matrix.getRowIds().length);
+        Arrays.sort(pageIds);
+        return new Iterator<CartographVector>() {
+            private int i = 0;
+
+            public boolean hasNext() {
+                return i < pageIds.length;
+            }
+
+            public CartographVector next() {
+                if (i >= pageIds.length) {
+                    throw new NoSuchElementException();
+                }
+                int pageId = pageIds[i++];
+                try {
+                    return getVector(pageId);
+                } catch (DaoException e) {
+                    LOG.warn("Error when processing page " + pageId, e);
+                    return null;
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     public CartographVector getVector(String id) throws IOException, DaoException {
-        DenseMatrixRow row = matrix.getRow(Integer.valueOf(id));
+        return getVector(Integer.valueOf(id));
+    }
+
+    public CartographVector getVector(int id) throws IOException, DaoException {
+        DenseMatrixRow row = matrix.getRow(id);
         return (row == null) ? null : makeVector(row);
     }
 
-    protected CartographVector makeVector(DenseMatrixRow row) throws DaoException {
-        LocalPage p = pageDao.getById(lang, row.getRowIndex());
-        if (p == null) {
-            return null;
+    /**
+     * Writes the vectors of the pages in id2Index to a vectors.tsv style file keyed by dense index.
+     *
+     * Rows are read in the order they are stored in the matrix, so the matrix
+     * is scanned sequentially, and only the vector is read for each page.
+     * Pages without a row in the matrix are skipped.
+     *
+     * @return The number of vectors written.
+     */
+    public int writeVectors(TIntIntMap id2Index, File out) throws IOException {
+        BufferedWriter w = WpIOUtils.openWriter(out);
+        w.write("id\tvector\n");
+        int numWritten = 0;
+        for (int pageId : matrix.getRowIds()) {
+            if (!id2Index.containsKey(pageId)) {
+                continue;
+            }
+            DenseMatrixRow row = matrix.getRow(pageId);
+            w.write(id2Index.get(pageId) + "");
+            for (int i = 0; i < row.getNumCols(); i++) {
+                w.write("\t" + Float.toString(row.getColValue(i)));
+            }
+            w.write("\n");
+            numWritten++;
+        }
+        w.close();
+        if (numWritten < id2Index.size()) {
+            LOG.info("No SR vector for {} of {} pages", id2Index.size() - numWritten, id2Index.size());
         }
-        double pp = pop.getPopularity(p.getLocalId());
+        return numWritten;
+    }
 
-        List<String> links = new ArrayList<String>();
-        for (LocalLink ll : linkDao.getLinks(lang, p.getLocalId(), true)) {
-            links.add("" + ll.getLocalId());
+    protected CartographVector makeVector(DenseMatrixRow row) throws DaoException {
+        int pageId = row.getRowIndex();
+        String title = pop.getTitle(pageId);
+        if (title == null) {
+            return null;
         }
+        double pp = pop.getPopularity(pageId);
 
         return new CartographVector(
-                p.getTitle().getCanonicalTitle(),
-                "" + p.getLocalId(),
-                links.toArray(new String[links.size()]),
+                title,
+                pageId,
+                getLinks(pageId),
                 row.getValues(),
                 pp);
     }
+
+    private int[] getLinks(int pageId) throws DaoException {
+        if (linkGraph != null) {
+            return linkGraph.getLinks(pageId);
+        }
+        TIntList links = new TIntArrayList();
+        for (LocalLink ll : linkDao.getLinks(lang, pageId, true)) {
+            links.add(ll.getLocalId());
+        }
+        return links.toArray();
+    }
 }
@@ -0,0 +1,176 @@
+package info.cartograph;
+
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes the same dataset files as DatasetWriter, but one vector at a time.
+ *
+ * Dense indices are assigned as vectors arrive, so only the id to index
+ * mapping is held in memory, as a primitive int map. Links can only be
+ * resolved once the final id set is known, so raw link ids are spooled
+ * to a temporary binary file and resolved into links.tsv when the writer
+ * is closed.
+ *
+ * In binary or combined format the numeric columns are also written by a
+ * BinaryDatasetWriter, with links written in CSR form on close.
+ *
+ * @author Shilad Sen
+ */
+public class StreamingDatasetWriter {
+    private final File outputDir;
+    private final DatasetWriter.Format format;
+    private final TIntIntMap id2Index = new TIntIntHashMap();
+    private final File linkSpool;
+
+    private final BufferedWriter idWriter;
+    private final BufferedWriter nameWriter;
+    private final DataOutputStream spoolWriter;
+    private BufferedWriter vectorWriter = null;
+    private BufferedWriter popularityWriter = null;
+    private BinaryDatasetWriter binaryWriter = null;
+
+    public StreamingDatasetWriter(File outputDir) throws IOException {
+        this(outputDir, DatasetWriter.Format.TSV);
+    }
+
+    public StreamingDatasetWriter(File outputDir, DatasetWriter.Format format) throws IOException {
+        this(outputDir, format, VectorQuantizer.Type.FLOAT32);
+    }
+
+    /**
+     * @param quantization Encoding of binary vectors. TSV vectors are always written in full.
+     */
+    public StreamingDatasetWriter(File outputDir, DatasetWriter.Format format, VectorQuantizer.Type quantization) throws IOException {
+        if (!outputDir.isDirectory()) outputDir.mkdirs();
+        this.outputDir = outputDir;
+        this.format = format;
+        this.linkSpool = File.createTempFile("links", ".spool", outputDir);
+        this.linkSpool.deleteOnExit();
+
+        idWriter = WpIOUtils.openWriter(new File(outputDir, "ids.tsv"));
+        idWriter.write("id\texternalId\n");
+        nameWriter = WpIOUtils.openWriter(new File(outputDir, "names.tsv"));
+        nameWriter.write("id\tname\n");
+        spoolWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(linkSpool)));
+        if (format.hasTsv()) {
+            vectorWriter = WpIOUtils.openWriter(new File(outputDir, "vectors.tsv"));
+            vectorWriter.write("id\tvector\n");
+            popularityWriter = WpIOUtils.openWriter(new File(outputDir, "popularity.tsv"));
+            popularityWriter.write("id\tpopularity\n");
+        }
+        if (format.hasBinary()) {
+            binaryWriter = new BinaryDatasetWriter(outputDir, quantization);
+        }
+    }
+
+    /**
+     * Appends a vector to the dataset.
+     *
+     * @return The dense index assigned to the vector, or -1 if the vector
+     *         was null or its id has already been written.
+     */
+    public int write(CartographVector v) throws IOException {
+        if (v == null || id2Index.containsKey(v.getIntId())) {
+            return -1;
+        }
+        int index = id2Index.size() + 1;
+        id2Index.put(v.getIntId(), index);
+
+        idWriter.write(index + "\t" + v.getIntId() + "\n");
+        nameWriter.write(index + "\t" + v.getName() + "\n");
+        if (format.hasTsv()) {
+            popularityWriter.write(index + "\t" + v.getPopularity() + "\n");
+            vectorWriter.write(index + "");
+            for (float x : v.getVector()) {
+                vectorWriter.write("\t" + Float.toString(x));
+            }
+            vectorWriter.write("\n");
+        }
+        if (format.hasBinary()) {
+            binaryWriter.writeRow(index, v.getVector(), v.getPopularity());
+        }
+
+        int links[] = v.getLinks();
+        spoolWriter.writeInt(index);
+        spoolWriter.writeInt(links.length);
+        for (int id2 : links) {
+            spoolWriter.writeInt(id2);
+        }
+
+        return index;
+    }
+
+    /**
+     * Closes all column files and resolves the spooled links against
+     * the final id set.
+     */
+    public void close() throws IOException {
+        idWriter.close();
+        nameWriter.close();
+        spoolWriter.close();
+        if (format.hasTsv()) {
+            vectorWriter.close();
+            popularityWriter.close();
+        }
+
+        DataInputStream reader = new DataInputStream(new BufferedInputStream(new FileInputStream(linkSpool)));
+        BufferedWriter w = format.hasTsv() ? WpIOUtils.openWriter(new File(outputDir, "links.tsv")) : null;
+        if (w != null) w.write("id\tlinks\n");
+        TIntList links = new TIntArrayList();
+        for (int row = 0; row < id2Index.size(); row++) {
+            int index = reader.readInt();
+            int n = reader.readInt();
+            links.clear();
+            for (int i = 0; i < n; i++) {
+                int index2 = id2Index.get(reader.readInt());
+                if (index2 > 0) {
+                    links.add(index2);
+                }
+            }
+            if (w != null) {
+                w.write(index + "");
+                for (int i = 0; i < links.size(); i++) {
+                    w.write("\t" + links.get(i));
+                }
+                w.write("\n");
+            }
+            if (binaryWriter != null) {
+                binaryWriter.writeLinks(links.toArray());
+            }
+        }
+        if (w != null) w.close();
+        if (binaryWriter != null) binaryWriter.close();
+        reader.close();
+        linkSpool.delete();
+    }
+
+    /**
+     * Returns the mapping from page id to dense index.
+     * Indices start at 1, so a missing page maps to 0.
+     */
+    public TIntIntMap getIndex() {
+        return id2Index;
+    }
+
+    /**
+     * Returns a String keyed copy of the index for older callers.
+     */
+    public Map<String, Integer> getId2Index() {
+        Map<String, Integer> result = new HashMap<String, Integer>(id2Index.size());
+        TIntIntIterator iter = id2Index.iterator();
+        while (iter.hasNext()) {
+            iter.advance();
+            result.put("" + iter.key(), iter.value());
+        }
+        return result;
+    }
+}
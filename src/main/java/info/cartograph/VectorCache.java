@@ -0,0 +1,309 @@
+package info.cartograph;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import org.apache.commons.cli.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.conf.DefaultOptionBuilder;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A memory-mapped binary copy of a WMF / word2vec text vector file.
+ *
+ * The file is laid out as a little-endian header (magic, version, number of rows,
+ * dimensions, number of distinct ids), a contiguous float32 matrix with one row
+ * per vector line in text file order, the Wikidata item id of each row, and an
+ * index of the distinct item ids sorted ascending with the first row of each.
+ * Rows are iterated in the same order, and with the same repeats, as the text
+ * file, while findRow searches the index. Rows are read straight from the
+ * mapped file, so opening a cache costs nothing beyond mapping it.
+ *
+ * Run main() once to convert a text vector file into a cache.
+ *
+ * @author Shilad Sen
+ */
+public class VectorCache {
+    private static final Logger LOG = LoggerFactory.getLogger(VectorCache.class);
+
+    private static final int MAGIC = 0x43564543;
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 20;
+
+    private final File file;
+    private final int numRows;
+    private final int dimensions;
+    private final int numIndexed;
+    private final IntBuffer itemIds;
+    private final IntBuffer indexIds;
+    private final IntBuffer indexRows;
+    private final FloatBuffer[] segments;
+
+    public VectorCache(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = map(channel, 0, HEADER_BYTES);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a vector cache file: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported vector cache version " + version + " in " + file + "; convert it again");
+            }
+            numRows = header.getInt();
+            dimensions = header.getInt();
+            numIndexed = header.getInt();
+            segments = mapMatrix(channel, HEADER_BYTES, numRows, dimensions);
+            long idStart = HEADER_BYTES + 4L * dimensions * numRows;
+            itemIds = map(channel, idStart, 4L * numRows).asIntBuffer();
+            indexIds = map(channel, idStart + 4L * numRows, 4L * numIndexed).asIntBuffer();
+            indexRows = map(channel, idStart + 4L * (numRows + numIndexed), 4L * numIndexed).asIntBuffer();
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long start, long size) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int rowsPerSegment(int dims) {
+        return Math.max(1, Integer.MAX_VALUE / (4 * dims));
+    }
+
+    /**
+     * Maps a float32 matrix. A single mapping is limited to 2GB, so the matrix
+     * is mapped in row-aligned segments.
+     */
+    private static FloatBuffer[] mapMatrix(FileChannel channel, long start, int numRows, int dims) throws IOException {
+        int rowsPerSegment = rowsPerSegment(dims);
+        FloatBuffer[] segments = new FloatBuffer[(numRows + rowsPerSegment - 1) / rowsPerSegment];
+        for (int i = 0; i < segments.length; i++) {
+            int rows = Math.min(rowsPerSegment, numRows - i * rowsPerSegment);
+            long offset = start + 4L * dims * i * rowsPerSegment;
+            segments[i] = map(channel, offset, 4L * dims * rows).asFloatBuffer();
+        }
+        return segments;
+    }
+
+    private static void readRow(FloatBuffer[] segments, int dims, int row, float[] dest, int offset) {
+        int rowsPerSegment = rowsPerSegment(dims);
+        FloatBuffer segment = segments[row / rowsPerSegment];
+        int start = (row % rowsPerSegment) * dims;
+        for (int i = 0; i < dims; i++) {
+            dest[offset + i] = segment.get(start + i);
+        }
+    }
+
+    /**
+     * Returns true if the file starts with the vector cache magic number.
+     */
+    public static boolean isCache(File file) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_BYTES) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return Integer.reverseBytes(in.readInt()) == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    public int getItemId(int row) {
+        return itemIds.get(row);
+    }
+
+    /**
+     * Returns the first row for a Wikidata item id, or -1 if the item is not in the cache.
+     */
+    public int findRow(int itemId) {
+        int lo = 0, hi = numIndexed - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = indexIds.get(mid);
+            if (id < itemId) {
+                lo = mid + 1;
+            } else if (id > itemId) {
+                hi = mid - 1;
+            } else {
+                return indexRows.get(mid);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Copies a row of the matrix into dest, starting at offset.
+     * Safe to call from multiple threads.
+     */
+    public void getRow(int row, float[] dest, int offset) {
+        readRow(segments, dimensions, row, dest, offset);
+    }
+
+    /**
+     * Iterates over the row numbers of the cache in text file order.
+     */
+    public Iterator<Integer> rows() {
+        return new Iterator<Integer>() {
+            int next = 0;
+
+            public boolean hasNext() {
+                return next < numRows;
+            }
+
+            public Integer next() {
+                if (next >= numRows) {
+                    throw new NoSuchElementException();
+                }
+                return next++;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Converts a text vector file to a vector cache in a single pass. Rows are
+     * written in file order, including repeated item ids, so iterating over the
+     * cache yields the same vectors as reading the text file. Lines without a
+     * Q-id or with the wrong number of values are skipped, as they are when the
+     * text file is read.
+     */
+    public static void convert(File textFile, File cacheFile) throws IOException {
+        BufferedReader reader = WpIOUtils.openBufferedReader(textFile);
+        VectorLineParser parser = VectorLineParser.forHeader(reader.readLine());
+        int dims = parser.getDimensions();
+        TIntList ids = new TIntArrayList();
+        float[] row = new float[dims];
+        ByteBuffer buffer = ByteBuffer.allocate(4 * dims).order(ByteOrder.LITTLE_ENDIAN);
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(cacheFile));
+        out.write(new byte[HEADER_BYTES]);  // Filled in once the counts are known
+        int lineNum = 1;
+        while (true) {
+            String line = reader.readLine();
+            if (line == null) {
+                break;
+            }
+            if (++lineNum % 100000 == 0) {
+                LOG.info("Converting line " + lineNum);
+            }
+            int itemId = parser.parseItemId(line);
+            if (itemId < 0) {
+                continue;
+            }
+            int n = parser.parseValues(line, row, 0);
+            if (n != dims) {
+                LOG.warn("Invalid vector length for Q{}. Expected {}, found {}.", itemId, dims, n);
+                continue;
+            }
+            writeRow(out, buffer, row);
+            ids.add(itemId);
+        }
+        reader.close();
+
+        // Index the distinct ids. Packing (id, row) into a long keeps the first row for repeated ids.
+        long order[] = new long[ids.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = ((long) ids.get(i) << 32) | i;
+        }
+        Arrays.sort(order);
+        TIntList indexIds = new TIntArrayList();
+        TIntList indexRows = new TIntArrayList();
+        for (long l : order) {
+            int id = (int) (l >>> 32);
+            if (indexIds.isEmpty() || indexIds.get(indexIds.size() - 1) != id) {
+                indexIds.add(id);
+                indexRows.add((int) l);
+            }
+        }
+        order = null;
+
+        writeInts(out, ids);
+        writeInts(out, indexIds);
+        writeInts(out, indexRows);
+        out.close();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(ids.size()).putInt(dims).putInt(indexIds.size());
+        RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw");
+        try {
+            raf.write(header.array());
+        } finally {
+            raf.close();
+        }
+        LOG.info("Wrote {} vectors for {} distinct items with {} dimensions to {}",
+                ids.size(), indexIds.size(), dims, cacheFile);
+    }
+
+    private static void writeInts(OutputStream out, TIntList values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * values.size()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asIntBuffer().put(values.toArray());
+        out.write(buffer.array());
+    }
+
+    private static void writeRow(OutputStream out, ByteBuffer buffer, float[] row) throws IOException {
+        buffer.clear();
+        buffer.asFloatBuffer().put(row);
+        out.write(buffer.array());
+    }
+
+    public static void main(String args[]) throws IOException {
+        Options options = new Options();
+
+        // Specify the input text vector file
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .isRequired()
+                        .withLongOpt("input")
+                        .withDescription("WMF text vector file")
+                        .create("i"));
+
+        // Specify the output cache file
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .hasArg()
+                        .isRequired()
+                        .withLongOpt("output")
+                        .withDescription("binary vector cache file")
+                        .create("o"));
+
+        CommandLineParser parser = new PosixParser();
+        CommandLine cmd;
+        try {
+            cmd = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println("Invalid option usage: " + e.getMessage());
+            new HelpFormatter().printHelp("VectorCache", options);
+            return;
+        }
+        convert(new File(cmd.getOptionValue("i")), new File(cmd.getOptionValue("o")));
+    }
+}
@@ -0,0 +1,321 @@
+package info.cartograph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Fuses vectors for the same page from any number of sources into a single vector.
+ *
+ * Each source has a weight, a normalization mode and an optional reducer.
+ * A source vector is first reduced, then normalized, then multiplied by
+ * its weight. The fused vector is the concatenation of the source vectors
+ * in the order the sources were added. Only pages present in every source
+ * are returned. Names, links and popularity come from the first source.
+ *
+ * Sources added with addSource may arrive in any order. Each is externally
+ * sorted by page id with a VectorSorter, and the sorted streams are
+ * merge-joined, so memory stays bounded by the sorter's run size. Sources
+ * added with addSortedSource must already be in ascending page id order.
+ * They are streamed straight into the join without being spilled, and the
+ * join fails if one goes out of order.
+ *
+ * @author Shilad Sen
+ */
+public class VectorFusion implements Iterable<CartographVector> {
+    private static final Logger LOG = LoggerFactory.getLogger(VectorFusion.class);
+
+    public enum Normalization {
+        /**
+         * Use source vectors as is.
+         */
+        NONE,
+
+        /**
+         * Scale source vectors to unit length.
+         */
+        UNIT
+    }
+
+    private static class Source {
+        final Iterable<CartographVector> vectors;
+        final double weight;
+        final Normalization normalization;
+        final VectorReducer reducer;
+        final boolean sorted;
+
+        Source(Iterable<CartographVector> vectors, double weight, Normalization normalization, VectorReducer reducer, boolean sorted) {
+            this.vectors = vectors;
+            this.weight = weight;
+            this.normalization = normalization;
+            this.reducer = reducer;
+            this.sorted = sorted;
+        }
+    }
+
+    private final List<Source> sources = new ArrayList<Source>();
+    private final VectorSorter sorter;
+
+    public VectorFusion(File tmpDir) {
+        this(new VectorSorter(tmpDir));
+    }
+
+    public VectorFusion(VectorSorter sorter) {
+        this.sorter = sorter;
+    }
+
+    public void addSource(Iterable<CartographVector> vectors, double weight, Normalization normalization) {
+        addSource(vectors, weight, normalization, null);
+    }
+
+    /**
+     * @param reducer Applied to source vectors before normalization, or null.
+     */
+    public void addSource(Iterable<CartographVector> vectors, double weight, Normalization normalization, VectorReducer reducer) {
+        sources.add(new Source(vectors, weight, normalization, reducer, false));
+    }
+
+    /**
+     * Adds a source whose vectors are in ascending page id order, so it can be streamed.
+     */
+    public void addSortedSource(Iterable<CartographVector> vectors, double weight, Normalization normalization) {
+        addSortedSource(vectors, weight, normalization, null);
+    }
+
+    /**
+     * Adds a source whose vectors are in ascending page id order, so it can be streamed.
+     *
+     * @param reducer Applied to source vectors before normalization, or null.
+     */
+    public void addSortedSource(Iterable<CartographVector> vectors, double weight, Normalization normalization, VectorReducer reducer) {
+        sources.add(new Source(vectors, weight, normalization, reducer, true));
+    }
+
+    public Iterator<CartographVector> iterator() {
+        if (sources.isEmpty()) {
+            throw new IllegalStateException("No sources added");
+        }
+        List<Iterator<CartographVector>> sorted = new ArrayList<Iterator<CartographVector>>();
+        List<Iterator<CartographVector>> streamed = new ArrayList<Iterator<CartographVector>>();
+        try {
+            for (int i = 0; i < sources.size(); i++) {
+                Iterator<CartographVector> iter = sources.get(i).vectors.iterator();
+                if (sources.get(i).sorted) {
+                    LOG.info("Streaming sorted vectors from source {} of {}", i + 1, sources.size());
+                    sorted.add(new OrderedIterator(i, prepare(sources.get(i), iter)));
+                    streamed.add(iter);
+                    continue;
+                }
+                LOG.info("Sorting vectors from source {} of {}", i + 1, sources.size());
+                try {
+                    sorted.add(sorter.sort(prepare(sources.get(i), iter)));
+                } finally {
+                    ParallelTransformIterator.close(iter);
+                }
+            }
+        } catch (IOException e) {
+            closeAll(sorted);
+            closeAll(streamed);
+            throw new RuntimeException(e);
+        }
+        return new JoinIterator(sorted, streamed);
+    }
+
+    private static void closeAll(List<Iterator<CartographVector>> iters) {
+        for (Iterator<CartographVector> iter : iters) {
+            ParallelTransformIterator.close(iter);
+        }
+    }
+
+    /**
+     * Skips null vectors and repeated page ids in a source that should be sorted,
+     * keeping the first vector for each page as VectorSorter does, and fails if
+     * the page ids go backwards.
+     */
+    private static class OrderedIterator implements Iterator<CartographVector> {
+        private final int sourceIndex;
+        private final Iterator<CartographVector> iter;
+        private CartographVector next = null;
+        private int lastId = Integer.MIN_VALUE;
+
+        OrderedIterator(int sourceIndex, Iterator<CartographVector> iter) {
+            this.sourceIndex = sourceIndex;
+            this.iter = iter;
+        }
+
+        public boolean hasNext() {
+            while (next == null && iter.hasNext()) {
+                next = iter.next();
+                if (next != null && next.getIntId() <= lastId) {
+                    if (next.getIntId() < lastId) {
+                        throw new IllegalStateException("Source " + (sourceIndex + 1) + " was added as sorted, but page "
+                                + next.getIntId() + " follows page " + lastId);
+                    }
+                    next = null;
+                }
+            }
+            return next != null;
+        }
+
+        public CartographVector next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            lastId = next.getIntId();
+            CartographVector v = next;
+            next = null;
+            return v;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Applies a source's reducer, normalization and weight to its vectors.
+     */
+    private static Iterator<CartographVector> prepare(final Source source, final Iterator<CartographVector> iter) {
+        return new Iterator<CartographVector>() {
+            public boolean hasNext() {
+                return iter.hasNext();
+            }
+
+            public CartographVector next() {
+                CartographVector cv = iter.next();
+                if (cv == null) {
+                    return null;
+                }
+                float v[] = cv.getVector();
+                if (source.reducer != null) {
+                    v = source.reducer.reduce(v);
+                }
+                double scale = source.weight;
+                if (source.normalization == Normalization.UNIT) {
+                    double sum = VectorKernels.squaredNorm(v);
+                    if (sum > 0.0) {
+                        scale /= Math.sqrt(sum);
+                    }
+                }
+                float scaled[] = new float[v.length];
+                VectorKernels.scaleInto(v, scale, scaled, 0);
+                return new CartographVector(cv.getName(), cv.getIntId(), cv.getLinks(), scaled, cv.getPopularity());
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Merge-joins sorted sources on page id. The sorted runs and the streamed
+     * source iterators are closed when the join is exhausted or closed.
+     */
+    private static class JoinIterator implements Iterator<CartographVector>, Closeable {
+        private final List<Iterator<CartographVector>> sources;
+        private final List<Iterator<CartographVector>> streamed;
+        private final CartographVector heads[];
+        private CartographVector next = null;
+
+        JoinIterator(List<Iterator<CartographVector>> sources, List<Iterator<CartographVector>> streamed) {
+            this.sources = sources;
+            this.streamed = streamed;
+            this.heads = new CartographVector[sources.size()];
+            fill();
+        }
+
+        private boolean advance(int i) {
+            Iterator<CartographVector> iter = sources.get(i);
+            heads[i] = iter.hasNext() ? iter.next() : null;
+            return heads[i] != null;
+        }
+
+        private void fill() {
+            next = null;
+            try {
+                join();
+            } finally {
+                if (next == null) {
+                    close();
+                }
+            }
+        }
+
+        public void close() {
+            closeAll(sources);
+            closeAll(streamed);
+        }
+
+        private void join() {
+            for (int i = 0; i < heads.length; i++) {
+                if (heads[i] == null && !advance(i)) {
+                    return;
+                }
+            }
+            while (true) {
+                int maxId = Integer.MIN_VALUE;
+                for (CartographVector v : heads) {
+                    maxId = Math.max(maxId, v.getIntId());
+                }
+                boolean matched = true;
+                for (int i = 0; i < heads.length; i++) {
+                    while (heads[i].getIntId() < maxId) {
+                        if (!advance(i)) {
+                            return;
+                        }
+                    }
+                    if (heads[i].getIntId() != maxId) {
+                        matched = false;
+                    }
+                }
+                if (matched) {
+                    next = fuse(heads);
+                    for (int i = 0; i < heads.length; i++) {
+                        heads[i] = null;
+                    }
+                    return;
+                }
+            }
+        }
+
+        private static CartographVector fuse(CartographVector[] vectors) {
+            int length = 0;
+            for (CartographVector v : vectors) {
+                length += v.getVector().length;
+            }
+            float fused[] = new float[length];
+            int offset = 0;
+            for (CartographVector v : vectors) {
+                System.arraycopy(v.getVector(), 0, fused, offset, v.getVector().length);
+                offset += v.getVector().length;
+            }
+            CartographVector first = vectors[0];
+            return new CartographVector(first.getName(), first.getIntId(), first.getLinks(), fused, first.getPopularity());
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public CartographVector next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            CartographVector v = next;
+            fill();
+            return v;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package info.cartograph;
+
+/**
+ * Small numeric kernels shared by the vectorizers.
+ *
+ * Loops are unrolled by four with independent accumulators. This breaks
+ * the dependency chain in the reductions and gives HotSpot loops that it
+ * can auto-vectorize.
+ *
+ * @author Shilad Sen
+ */
+public class VectorKernels {
+
+    /**
+     * Returns the squared L2 norm of a vector, accumulated in double precision.
+     */
+    public static double squaredNorm(float[] v) {
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        int n = v.length;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            s0 += v[i] * v[i];
+            s1 += v[i + 1] * v[i + 1];
+            s2 += v[i + 2] * v[i + 2];
+            s3 += v[i + 3] * v[i + 3];
+        }
+        for (; i < n; i++) {
+            s0 += v[i] * v[i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Writes src scaled to unit length into dest starting at offset.
+     * A zero vector is copied unchanged. src is not modified.
+     */
+    public static void unitizeInto(float[] src, float[] dest, int offset) {
+        double sum = squaredNorm(src);
+        scaleInto(src, (sum == 0.0) ? 1.0 : 1.0 / Math.sqrt(sum), dest, offset);
+    }
+
+    /**
+     * Writes src multiplied by scale into dest starting at offset.
+     */
+    public static void scaleInto(float[] src, double scaleFactor, float[] dest, int offset) {
+        float scale = (float) scaleFactor;
+        int n = src.length;
+        int i = 0;
+        for (; i + 3 < n; i += 4) {
+            dest[offset + i] = src[i] * scale;
+            dest[offset + i + 1] = src[i + 1] * scale;
+            dest[offset + i + 2] = src[i + 2] * scale;
+            dest[offset + i + 3] = src[i + 3] * scale;
+        }
+        for (; i < n; i++) {
+            dest[offset + i] = src[i] * scale;
+        }
+    }
+
+    /**
+     * Returns a new vector holding the unit length versions of a and b, back to back.
+     */
+    public static float[] concatUnitized(float[] a, float[] b) {
+        float result[] = new float[a.length + b.length];
+        unitizeInto(a, result, 0);
+        unitizeInto(b, result, a.length);
+        return result;
+    }
+}
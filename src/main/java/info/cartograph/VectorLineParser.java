@@ -0,0 +1,174 @@
+package info.cartograph;
+
+/**
+ * Parses lines of the word2vec-style text vector format used by the WMF
+ * navigation vectors: a header line "numRows numDimensions" followed by
+ * lines of the form "Q42 0.1 -0.2 ...".
+ *
+ * Values are scanned directly from the line and written into a caller-supplied
+ * array, so no intermediate token strings are created.
+ *
+ * @author Shilad Sen
+ */
+public class VectorLineParser {
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1.0;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+        }
+    }
+
+    private final int dimensions;
+
+    public VectorLineParser(int dimensions) {
+        this.dimensions = dimensions;
+    }
+
+    /**
+     * Creates a parser for the dimensions declared in a header line.
+     */
+    public static VectorLineParser forHeader(String header) {
+        String tokens[] = header.trim().split("\\s+");
+        if (tokens.length < 2) {
+            throw new IllegalArgumentException("Invalid vector file header: " + header);
+        }
+        return new VectorLineParser(Integer.valueOf(tokens[1]));
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    /**
+     * Returns the Wikidata item id in the first token of the line (e.g. 42 for "Q42"),
+     * or -1 if the first token is not an item id.
+     */
+    public int parseItemId(CharSequence line) {
+        int i = skipWhitespace(line, 0);
+        if (i >= line.length() || line.charAt(i) != 'Q') {
+            return -1;
+        }
+        int id = 0;
+        int numDigits = 0;
+        for (i++; i < line.length() && !isWhitespace(line.charAt(i)); i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9' || numDigits >= 9) {
+                return -1;
+            }
+            id = id * 10 + (c - '0');
+            numDigits++;
+        }
+        return numDigits == 0 ? -1 : id;
+    }
+
+    /**
+     * Parses the values that follow the first token of the line into dest, starting at offset.
+     *
+     * @return The number of values on the line. If this differs from getDimensions()
+     *         the line is invalid and dest may have been partially written.
+     */
+    public int parseValues(CharSequence line, float[] dest, int offset) {
+        int n = line.length();
+        int i = skipWhitespace(line, 0);
+        while (i < n && !isWhitespace(line.charAt(i))) {
+            i++;
+        }
+        int count = 0;
+        while (true) {
+            i = skipWhitespace(line, i);
+            if (i >= n) {
+                break;
+            }
+            int end = i;
+            while (end < n && !isWhitespace(line.charAt(end))) {
+                end++;
+            }
+            if (count < dimensions) {
+                dest[offset + count] = parseFloat(line, i, end);
+            }
+            count++;
+            i = end;
+        }
+        return count;
+    }
+
+    /**
+     * Parses a decimal float from a region of a char sequence.
+     * Plain decimal and scientific notation are handled inline; anything else
+     * (NaN, Infinity, very long mantissas or exponents) falls back to Float.parseFloat.
+     */
+    public static float parseFloat(CharSequence s, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int numDigits = 0;
+        boolean sawDigit = false;
+        for (; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') break;
+            sawDigit = true;
+            if (numDigits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa > 0) numDigits++;
+            } else {
+                exponent++;
+            }
+        }
+        if (i < end && s.charAt(i) == '.') {
+            for (i++; i < end; i++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') break;
+                sawDigit = true;
+                if (numDigits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (mantissa > 0) numDigits++;
+                    exponent--;
+                }
+            }
+        }
+        if (sawDigit && i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+                negativeExp = s.charAt(i) == '-';
+                i++;
+            }
+            int exp = 0;
+            int numExpDigits = 0;
+            for (; i < end && numExpDigits < 4; i++, numExpDigits++) {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9') break;
+                exp = exp * 10 + (c - '0');
+            }
+            if (numExpDigits == 0) {
+                return Float.parseFloat(s.subSequence(start, end).toString());
+            }
+            exponent += negativeExp ? -exp : exp;
+        }
+        if (!sawDigit || i != end || mantissa >= (1L << 53)
+        ||  exponent < -(POWERS_OF_TEN.length - 1) || exponent > POWERS_OF_TEN.length - 1) {
+            return Float.parseFloat(s.subSequence(start, end).toString());
+        }
+        double value = (exponent < 0)
+                ? mantissa / POWERS_OF_TEN[-exponent]
+                : mantissa * POWERS_OF_TEN[exponent];
+        return (float) (negative ? -value : value);
+    }
+
+    private static int skipWhitespace(CharSequence s, int i) {
+        while (i < s.length() && isWhitespace(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+}
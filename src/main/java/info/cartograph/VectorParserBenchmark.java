@@ -0,0 +1,72 @@
+package info.cartograph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares VectorLineParser against the split / Float.valueOf parsing it replaced
+ * on synthetic lines in the WMF vector format.
+ *
+ * @author Shilad Sen
+ */
+public class VectorParserBenchmark {
+    private static final int NUM_LINES = 20000;
+    private static final int NUM_ROUNDS = 10;
+
+    public static void main(String args[]) {
+        for (int dims : new int[] { 100, 200, 300 }) {
+            List<String> lines = makeLines(dims);
+            double sum = 0.0;
+            for (int round = 0; round < NUM_ROUNDS; round++) {
+                long t0 = System.nanoTime();
+                sum += parseWithSplit(lines, dims);
+                long t1 = System.nanoTime();
+                sum += parseWithParser(lines, dims);
+                long t2 = System.nanoTime();
+                System.err.format("dims %d, round %d: split %.1f ns/line, parser %.1f ns/line\n",
+                        dims, round, (t1 - t0) * 1.0 / lines.size(), (t2 - t1) * 1.0 / lines.size());
+            }
+            System.err.println("checksum " + sum);
+        }
+    }
+
+    private static List<String> makeLines(int dims) {
+        Random random = new Random();
+        List<String> lines = new ArrayList<String>();
+        for (int i = 0; i < NUM_LINES; i++) {
+            StringBuilder line = new StringBuilder("Q" + random.nextInt(30000000));
+            for (int j = 0; j < dims; j++) {
+                line.append(' ').append((float) random.nextGaussian());
+            }
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    private static double parseWithSplit(List<String> lines, int dims) {
+        double sum = 0.0;
+        for (String line : lines) {
+            String tokens[] = line.trim().split(" ");
+            int itemId = Integer.valueOf(tokens[0].substring(1));
+            float v[] = new float[dims];
+            for (int i = 0; i < dims; i++) {
+                v[i] = Float.valueOf(tokens[i+1]);
+            }
+            sum += itemId + v[dims - 1];
+        }
+        return sum;
+    }
+
+    private static double parseWithParser(List<String> lines, int dims) {
+        VectorLineParser parser = new VectorLineParser(dims);
+        double sum = 0.0;
+        for (String line : lines) {
+            int itemId = parser.parseItemId(line);
+            float v[] = new float[dims];
+            parser.parseValues(line, v, 0);
+            sum += itemId + v[dims - 1];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,194 @@
+package info.cartograph;
+
+/**
+ * Encodes float vectors with fewer bits per value.
+ *
+ * INT8 uses symmetric per-row quantization: each row is stored as bytes in
+ * [-127, 127] along with a float scale, and value = byte * scale. FLOAT16
+ * uses IEEE 754 half precision with round to nearest even.
+ *
+ * Every encoded row is decoded again to track the cosine similarity
+ * between original and quantized rows, which is reported on close.
+ *
+ * @author Shilad Sen
+ */
+public class VectorQuantizer {
+
+    public enum Type {
+        FLOAT32(4, "<f4", "f32"),
+        FLOAT16(2, "<f2", "f16"),
+        INT8(1, "|i1", "i8");
+
+        private final int bytesPerValue;
+        private final String dtype;
+        private final String extension;
+
+        Type(int bytesPerValue, String dtype, String extension) {
+            this.bytesPerValue = bytesPerValue;
+            this.dtype = dtype;
+            this.extension = extension;
+        }
+
+        public int getBytesPerValue() {
+            return bytesPerValue;
+        }
+
+        /**
+         * Returns the numpy dtype of encoded values.
+         */
+        public String getDtype() {
+            return dtype;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    private final Type type;
+    private int numRows = 0;
+    private double sumCosine = 0.0;
+    private double minCosine = 1.0;
+
+    public VectorQuantizer(Type type) {
+        this.type = type;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Encodes the values of a vector into dest as little-endian bytes.
+     *
+     * @return The scale of the row for INT8, 1.0 otherwise.
+     */
+    public float encode(float[] vector, byte[] dest) {
+        float decoded[] = new float[vector.length];
+        float scale = 1.0f;
+        if (type == Type.INT8) {
+            float max = 0.0f;
+            for (float x : vector) {
+                max = Math.max(max, Math.abs(x));
+            }
+            scale = max / 127.0f;
+            for (int i = 0; i < vector.length; i++) {
+                int q = (scale == 0.0f) ? 0 : Math.round(vector[i] / scale);
+                q = Math.max(-127, Math.min(127, q));
+                dest[i] = (byte) q;
+                decoded[i] = q * scale;
+            }
+        } else if (type == Type.FLOAT16) {
+            for (int i = 0; i < vector.length; i++) {
+                short h = toHalf(vector[i]);
+                dest[2 * i] = (byte) h;
+                dest[2 * i + 1] = (byte) (h >> 8);
+                decoded[i] = fromHalf(h);
+            }
+        } else {
+            for (int i = 0; i < vector.length; i++) {
+                int bits = Float.floatToRawIntBits(vector[i]);
+                dest[4 * i] = (byte) bits;
+                dest[4 * i + 1] = (byte) (bits >> 8);
+                dest[4 * i + 2] = (byte) (bits >> 16);
+                dest[4 * i + 3] = (byte) (bits >> 24);
+                decoded[i] = vector[i];
+            }
+        }
+        track(vector, decoded);
+        return scale;
+    }
+
+    private void track(float[] original, float[] decoded) {
+        double dot = 0.0, n1 = 0.0, n2 = 0.0;
+        for (int i = 0; i < original.length; i++) {
+            dot += original[i] * decoded[i];
+            n1 += original[i] * original[i];
+            n2 += decoded[i] * decoded[i];
+        }
+        double cosine = (n1 == 0.0 && n2 == 0.0) ? 1.0 : dot / Math.sqrt(n1 * n2);
+        if (Double.isNaN(cosine)) {
+            cosine = 0.0;
+        }
+        numRows++;
+        sumCosine += cosine;
+        minCosine = Math.min(minCosine, cosine);
+    }
+
+    public int getNumRows() {
+        return numRows;
+    }
+
+    /**
+     * Returns the mean cosine similarity between original and quantized rows.
+     */
+    public double getMeanCosine() {
+        return (numRows == 0) ? 1.0 : sumCosine / numRows;
+    }
+
+    /**
+     * Returns the lowest cosine similarity between an original and quantized row.
+     */
+    public double getMinCosine() {
+        return minCosine;
+    }
+
+    /**
+     * Converts a float to IEEE 754 half precision bits, rounding to nearest even.
+     */
+    public static short toHalf(float f) {
+        int bits = Float.floatToRawIntBits(f);
+        int sign = (bits >>> 16) & 0x8000;
+        int exp = (bits >>> 23) & 0xff;
+        int mantissa = bits & 0x7fffff;
+
+        if (exp == 0xff) {
+            // Infinity or NaN
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        int e = exp - 127 + 15;
+        if (e >= 0x1f) {
+            // Overflow to infinity
+            return (short) (sign | 0x7c00);
+        }
+        if (e <= 0) {
+            // Subnormal half or zero
+            if (e < -10) {
+                return (short) sign;
+            }
+            mantissa |= 0x800000;
+            int shift = 14 - e;
+            int half = mantissa >> shift;
+            int rest = mantissa & ((1 << shift) - 1);
+            int midpoint = 1 << (shift - 1);
+            if (rest > midpoint || (rest == midpoint && (half & 1) != 0)) {
+                half++;
+            }
+            return (short) (sign | half);
+        }
+        int half = (e << 10) | (mantissa >> 13);
+        int rest = mantissa & 0x1fff;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0)) {
+            // May carry into the exponent, which correctly rounds up to infinity
+            half++;
+        }
+        return (short) (sign | half);
+    }
+
+    /**
+     * Converts IEEE 754 half precision bits to a float.
+     */
+    public static float fromHalf(short h) {
+        int sign = (h & 0x8000) << 16;
+        int exp = (h >>> 10) & 0x1f;
+        int mantissa = h & 0x3ff;
+        if (exp == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if (exp == 0) {
+            float value = mantissa * (1.0f / (1 << 24));
+            return (sign != 0) ? -value : value;
+        }
+        return Float.intBitsToFloat(sign | ((exp - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
@@ -0,0 +1,19 @@
+package info.cartograph;
+
+/**
+ * Maps vectors to a lower number of dimensions.
+ *
+ * @author Shilad Sen
+ */
+public interface VectorReducer {
+
+    /**
+     * Returns the number of dimensions in reduced vectors.
+     */
+    int getOutputDimensions();
+
+    /**
+     * Returns a new, reduced copy of the vector.
+     */
+    float[] reduce(float[] vector);
+}
@@ -0,0 +1,100 @@
+package info.cartograph;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Creates and applies VectorReducers for the extractors.
+ *
+ * @author Shilad Sen
+ */
+public class VectorReducers {
+    private static final Logger LOG = LoggerFactory.getLogger(VectorReducers.class);
+    public static final int DEFAULT_SAMPLE_SIZE = 20000;
+
+    /**
+     * Creates a reducer for vectors like those in the sample.
+     *
+     * @param method "random" for a Gaussian random projection or "pca".
+     * @param sample Gives the input dimensions and, for PCA, the vectors the
+     *               components are fit to.
+     */
+    public static VectorReducer fit(String method, int dimensions, List<float[]> sample) {
+        if (sample.isEmpty()) {
+            throw new IllegalArgumentException("No vectors to reduce");
+        }
+        LOG.info("Reducing vectors of length {} to {} dimensions with {}", sample.get(0).length, dimensions, method);
+        if (method.equalsIgnoreCase("random")) {
+            return new RandomProjection(sample.get(0).length, dimensions);
+        } else if (method.equalsIgnoreCase("pca")) {
+            return PcaReducer.fit(sample, dimensions);
+        } else {
+            throw new IllegalArgumentException("Unknown reduction method: " + method);
+        }
+    }
+
+    /**
+     * Returns the vectors in the source reduced, in source order. Null vectors are dropped.
+     *
+     * Random projections only need the input dimensions, so vectors are reduced
+     * as they are read. PCA reads every vector from the source in a single pass
+     * and fits the components to a uniform sample of it (see ReductionSpool),
+     * spilling the vectors to tmpDir in the meantime.
+     */
+    public static Iterator<CartographVector> reduce(final Iterator<CartographVector> source, String method, final int dimensions, File tmpDir) throws IOException {
+        if (method.equalsIgnoreCase("random")) {
+            return new Iterator<CartographVector>() {
+                private VectorReducer reducer = null;
+                private CartographVector next = null;
+
+                public boolean hasNext() {
+                    while (next == null && source.hasNext()) {
+                        next = source.next();
+                    }
+                    return next != null;
+                }
+
+                public CartographVector next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    if (reducer == null) {
+                        reducer = fit("random", dimensions, Collections.singletonList(next.getVector()));
+                    }
+                    CartographVector cv = next;
+                    next = null;
+                    return apply(reducer, cv);
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+        ReductionSpool spool = new ReductionSpool(method, dimensions, DEFAULT_SAMPLE_SIZE, tmpDir);
+        while (source.hasNext()) {
+            CartographVector cv = source.next();
+            if (cv != null) {
+                spool.add(cv);
+            }
+        }
+        return spool.reduced();
+    }
+
+    /**
+     * Returns a copy of the vector with its values reduced, or null if the vector is null.
+     */
+    public static CartographVector apply(VectorReducer reducer, CartographVector cv) {
+        if (cv == null) {
+            return null;
+        }
+        return new CartographVector(cv.getName(), cv.getIntId(), cv.getLinks(), reducer.reduce(cv.getVector()), cv.getPopularity());
+    }
+}
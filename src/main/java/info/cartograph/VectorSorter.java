@@ -0,0 +1,210 @@
+package info.cartograph;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Sorts a stream of vectors by page id using bounded memory.
+ *
+ * Vectors are buffered into runs of at most runSize vectors. Each run is
+ * sorted and spilled to a temporary file, and the runs are then merged
+ * lazily. If a page id appears more than once, only its first vector is
+ * kept. Null vectors are dropped.
+ *
+ * @author Shilad Sen
+ */
+public class VectorSorter {
+    public static final int DEFAULT_RUN_SIZE = 100000;
+
+    private static final Comparator<CartographVector> BY_ID = new Comparator<CartographVector>() {
+        public int compare(CartographVector v1, CartographVector v2) {
+            return (v1.getIntId() < v2.getIntId()) ? -1 : ((v1.getIntId() == v2.getIntId()) ? 0 : 1);
+        }
+    };
+
+    private final File tmpDir;
+    private final int runSize;
+
+    public VectorSorter(File tmpDir) {
+        this(tmpDir, DEFAULT_RUN_SIZE);
+    }
+
+    public VectorSorter(File tmpDir, int runSize) {
+        this.tmpDir = tmpDir;
+        this.runSize = runSize;
+    }
+
+    /**
+     * Spills the source to sorted runs and returns an iterator that merges them.
+     * Run files are deleted once the iterator is exhausted or closed.
+     */
+    public Iterator<CartographVector> sort(Iterator<CartographVector> source) throws IOException {
+        if (!tmpDir.isDirectory()) tmpDir.mkdirs();
+        List<File> runs = new ArrayList<File>();
+        List<CartographVector> buffer = new ArrayList<CartographVector>();
+        while (source.hasNext()) {
+            CartographVector v = source.next();
+            if (v == null) {
+                continue;
+            }
+            buffer.add(v);
+            if (buffer.size() >= runSize) {
+                runs.add(spill(buffer));
+                buffer.clear();
+            }
+        }
+        if (!buffer.isEmpty()) {
+            runs.add(spill(buffer));
+            buffer.clear();
+        }
+        return new MergeIterator(runs);
+    }
+
+    private File spill(List<CartographVector> buffer) throws IOException {
+        // Collections.sort is stable, so the first vector for an id stays first
+        Collections.sort(buffer, BY_ID);
+        File run = File.createTempFile("vectors", ".run", tmpDir);
+        run.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run)));
+        out.writeInt(buffer.size());
+        for (CartographVector v : buffer) {
+            write(out, v);
+        }
+        out.close();
+        return run;
+    }
+
+    static void write(DataOutputStream out, CartographVector v) throws IOException {
+        out.writeInt(v.getIntId());
+        out.writeUTF(v.getName());
+        out.writeDouble(v.getPopularity());
+        out.writeInt(v.getLinks().length);
+        for (int id : v.getLinks()) {
+            out.writeInt(id);
+        }
+        out.writeInt(v.getVector().length);
+        for (float x : v.getVector()) {
+            out.writeFloat(x);
+        }
+    }
+
+    static CartographVector read(DataInputStream in) throws IOException {
+        int id = in.readInt();
+        String name = in.readUTF();
+        double popularity = in.readDouble();
+        int links[] = new int[in.readInt()];
+        for (int i = 0; i < links.length; i++) {
+            links[i] = in.readInt();
+        }
+        float vector[] = new float[in.readInt()];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = in.readFloat();
+        }
+        return new CartographVector(name, id, links, vector, popularity);
+    }
+
+    /**
+     * A cursor over a single sorted run.
+     */
+    private static class Run {
+        private final File file;
+        private final int order;
+        private final DataInputStream in;
+        private int remaining;
+        private CartographVector head;
+
+        Run(File file, int order) throws IOException {
+            this.file = file;
+            this.order = order;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            this.remaining = in.readInt();
+            advance();
+        }
+
+        void advance() throws IOException {
+            if (remaining > 0) {
+                head = read(in);
+                remaining--;
+            } else {
+                close();
+            }
+        }
+
+        void close() throws IOException {
+            head = null;
+            in.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * Merges sorted runs. Ties go to the earliest run, which saw the id first.
+     */
+    private static class MergeIterator implements Iterator<CartographVector>, Closeable {
+        private final PriorityQueue<Run> queue;
+        private CartographVector next = null;
+        private int lastId;
+        private boolean started = false;
+
+        MergeIterator(List<File> files) throws IOException {
+            queue = new PriorityQueue<Run>(Math.max(1, files.size()), new Comparator<Run>() {
+                public int compare(Run r1, Run r2) {
+                    int c = BY_ID.compare(r1.head, r2.head);
+                    return (c != 0) ? c : (r1.order - r2.order);
+                }
+            });
+            for (int i = 0; i < files.size(); i++) {
+                Run run = new Run(files.get(i), i);
+                if (run.head != null) {
+                    queue.add(run);
+                }
+            }
+            fill();
+        }
+
+        private void fill() {
+            next = null;
+            try {
+                while (next == null && !queue.isEmpty()) {
+                    Run run = queue.poll();
+                    CartographVector v = run.head;
+                    run.advance();
+                    if (run.head != null) {
+                        queue.add(run);
+                    }
+                    if (!started || v.getIntId() != lastId) {
+                        next = v;
+                        lastId = v.getIntId();
+                        started = true;
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        public CartographVector next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            CartographVector v = next;
+            fill();
+            return v;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void close() throws IOException {
+            next = null;
+            while (!queue.isEmpty()) {
+                queue.poll().close();
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package info.cartograph;
+
+import gnu.trove.iterator.TIntObjectIterator;
+import gnu.trove.list.TIntList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TLongSet;
+import gnu.trove.set.hash.TLongHashSet;
+
+import org.wikibrain.core.lang.Language;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Mergeable per-page summaries of hourly page view samples, along with the
+ * set of hours they cover. New hours can be folded in without rescanning
+ * the hours that were already summarized.
+ *
+ * Each page's samples are kept as a sparse histogram. Counts below
+ * EXACT_LIMIT get their own bucket. Larger counts go into logarithmic
+ * buckets that are at most 1% wide. So medians are exact for small counts
+ * and within 1% for large ones. A histogram is a sorted int array of
+ * (bucket, count) pairs packed into single ints.
+ *
+ * Sketches record the language whose page views they summarize, since page
+ * ids and hours are only meaningful within one language.
+ *
+ * @author Shilad Sen
+ */
+public class ViewSketches implements Serializable {
+    private static final int EXACT_LIMIT = 256;
+    private static final double LOG_BASE = Math.log(1.01);
+    private static final int COUNT_BITS = 20;
+    private static final int COUNT_MASK = (1 << COUNT_BITS) - 1;
+
+    private final String langCode;
+    private final TLongSet hours = new TLongHashSet();
+    private final TIntObjectMap<int[]> sketches = new TIntObjectHashMap<int[]>();
+
+    public ViewSketches(Language lang) {
+        this.langCode = lang.getLangCode();
+    }
+
+    /**
+     * Returns true if these sketches summarize page views for the language.
+     */
+    public boolean isFor(Language lang) {
+        return lang.getLangCode().equals(langCode);
+    }
+
+    public boolean containsHour(long millis) {
+        return hours.contains(millis);
+    }
+
+    public long[] getHours() {
+        long result[] = hours.toArray();
+        Arrays.sort(result);
+        return result;
+    }
+
+    public void addHours(long[] millis) {
+        hours.addAll(millis);
+    }
+
+    /**
+     * Returns a hash of the covered hours that changes whenever hours are added.
+     */
+    public long getSignature() {
+        long h = 0xcbf29ce484222325L;
+        for (long millis : getHours()) {
+            h = (h ^ millis) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Folds new samples for a page into its sketch.
+     */
+    public void merge(int pageId, TIntList samples) {
+        int buckets[] = new int[samples.size()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = bucket(samples.get(i));
+        }
+        Arrays.sort(buckets);
+
+        int existing[] = sketches.get(pageId);
+        if (existing == null) {
+            existing = new int[0];
+        }
+        int merged[] = new int[existing.length + buckets.length];
+        int n = 0, i = 0, j = 0;
+        while (i < existing.length || j < buckets.length) {
+            int b, count;
+            if (j >= buckets.length || (i < existing.length && (existing[i] >>> COUNT_BITS) <= buckets[j])) {
+                b = existing[i] >>> COUNT_BITS;
+                count = existing[i++] & COUNT_MASK;
+            } else {
+                b = buckets[j++];
+                count = 1;
+            }
+            if (n > 0 && (merged[n - 1] >>> COUNT_BITS) == b) {
+                merged[n - 1] += count;
+            } else {
+                merged[n++] = (b << COUNT_BITS) | count;
+            }
+        }
+        sketches.put(pageId, Arrays.copyOf(merged, n));
+    }
+
+    /**
+     * Returns the median number of views for every page with samples.
+     * Like picking sample[n / 2] from the sorted samples, this is the upper median.
+     */
+    public TIntIntMap getMedians() {
+        TIntIntMap medians = new TIntIntHashMap(sketches.size());
+        TIntObjectIterator<int[]> iter = sketches.iterator();
+        while (iter.hasNext()) {
+            iter.advance();
+            medians.put(iter.key(), median(iter.value()));
+        }
+        return medians;
+    }
+
+    private static int median(int[] sketch) {
+        int total = 0;
+        for (int entry : sketch) {
+            total += entry & COUNT_MASK;
+        }
+        int remaining = total / 2;
+        for (int entry : sketch) {
+            remaining -= entry & COUNT_MASK;
+            if (remaining < 0) {
+                return value(entry >>> COUNT_BITS);
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    static int bucket(int views) {
+        if (views < EXACT_LIMIT) {
+            return Math.max(0, views);
+        }
+        return EXACT_LIMIT + (int) (Math.log(views * 1.0 / EXACT_LIMIT) / LOG_BASE);
+    }
+
+    /**
+     * Returns the value at the geometric center of a bucket.
+     */
+    static int value(int bucket) {
+        if (bucket < EXACT_LIMIT) {
+            return bucket;
+        }
+        return (int) Math.round(EXACT_LIMIT * Math.exp((bucket - EXACT_LIMIT + 0.5) * LOG_BASE));
+    }
+}
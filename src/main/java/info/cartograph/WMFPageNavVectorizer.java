@@ -12,16 +12,15 @@ import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalLinkDao;
-import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.dao.UniversalPageDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.core.model.LocalLink;
-import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.utils.WpIOUtils;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -42,13 +41,15 @@ public class WMFPageNavVectorizer implements Iterable<CartographVector> {
     private final Env env;
     private final Language lang;
     private final PagePopularity pop;
-    private final LocalPageDao pageDao;
+    private LinkGraph linkGraph = null;
     private final LocalLinkDao linkDao;
     private final File file;
     private final UniversalPageDao univDao;
     private final TIntIntMap concept2Id;
     private final TIntSet validIds;
-    private int vectorLength = -1;
+    private VectorLineParser parser = null;
+    private int numThreads = 1;
+    private boolean preserveOrder = true;
 
     public WMFPageNavVectorizer(Env env, Language lang, PagePopularity pop, File file) throws DaoException, ConfigurationException {
         this(env, lang, pop, file, null);
@@ -61,86 +62,145 @@ public class WMFPageNavVectorizer implements Iterable<CartographVector> {
         this.validIds = validIds;
         this.univDao = env.getComponent(UniversalPageDao.class);
         this.concept2Id = univDao.getAllUnivToLocalIdsMap(new LanguageSet(lang)).get(lang);
-        this.pageDao = env.getComponent(LocalPageDao.class);
         this.linkDao = env.getComponent(LocalLinkDao.class);
         this.pop = pop;
     }
 
+    /**
+     * Sets the number of threads used to parse lines. With more than one
+     * thread, a reader thread hands batches of lines to a pool of workers.
+     */
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    /**
+     * If false, parsed vectors are returned in the order batches complete
+     * rather than file order. Only applies when parsing in parallel.
+     */
+    public void setPreserveOrder(boolean preserveOrder) {
+        this.preserveOrder = preserveOrder;
+    }
+
+    /**
+     * Sets the graph outgoing links are read from.
+     * Without one, vectors are created without links.
+     */
+    public void setLinkGraph(LinkGraph linkGraph) {
+        this.linkGraph = linkGraph;
+    }
+
     public Iterator<CartographVector> iterator() {
         BufferedReader reader;
         try {
+            if (VectorCache.isCache(file)) {
+                return cacheIterator(new VectorCache(file));
+            }
             reader = WpIOUtils.openBufferedReader(file);
+            parser = VectorLineParser.forHeader(reader.readLine());
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        final AtomicInteger lineNum = new AtomicInteger();
-        return new TransformIterator<String, CartographVector>(
-                new LineIterator(reader),
-                new Transformer<String, CartographVector>() {
-                    public CartographVector transform(String line) {
-                        int n = lineNum.getAndIncrement();
-                        if (n % 100000 == 0) {
-                            LOG.info("Processing line " + n);
-                        }
-                        // Read header header
-                        if (vectorLength < 0) {
-                            vectorLength = Integer.valueOf(line.split("\\s+")[1]);
-                        } else {
-                            try {
-                                return makeVector(line);
-                            } catch (DaoException e) {
-                                LOG.warn("Error when processing line " +
-                                        StringEscapeUtils.escapeJavaScript(line), e);
-                            }
-                        }
-                        return null;
-                    }
+        final AtomicInteger lineNum = new AtomicInteger(1);
+        return transform(new LineIterator(reader), reader, new Transformer<String, CartographVector>() {
+            public CartographVector transform(String line) {
+                int n = lineNum.getAndIncrement();
+                if (n % 100000 == 0) {
+                    LOG.info("Processing line " + n);
                 }
-        );
+                try {
+                    return makeVector(line);
+                } catch (DaoException e) {
+                    LOG.warn("Error when processing line " +
+                            StringEscapeUtils.escapeJavaScript(line), e);
+                }
+                return null;
+            }
+        });
     }
 
-    protected CartographVector makeVector(String line) throws DaoException {
-        String tokens[] = line.trim().split(" ");
-        if (tokens.length == 0) {
-            LOG.warn("Empty line encountered!");
-            return null;
-        }
-        assert(vectorLength > 0);
-        if (tokens.length - 1 != vectorLength) {
-            LOG.warn("Invalid vector length for {}. Expected {}, found {}.",
-                    tokens[0], vectorLength, tokens.length - 1);
-            return null;
-        }
+    /**
+     * Reads vectors from a memory-mapped binary cache created by VectorCache.
+     */
+    private Iterator<CartographVector> cacheIterator(final VectorCache cache) {
+        return transform(cache.rows(), null, new Transformer<Integer, CartographVector>() {
+            public CartographVector transform(Integer row) {
+                if (row % 100000 == 0) {
+                    LOG.info("Processing row " + row);
+                }
+                int pageId = getPageId(cache.getItemId(row));
+                if (pageId < 0) {
+                    return null;
+                }
+                float v[] = new float[cache.getDimensions()];
+                cache.getRow(row, v, 0);
+                try {
+                    return makeVector(pageId, v);
+                } catch (DaoException e) {
+                    LOG.warn("Error when processing row " + row, e);
+                }
+                return null;
+            }
+        });
+    }
 
-        String strId = tokens[0];
-        if (strId.length() == 0 || !strId.startsWith("Q")) {
-            return null;
+    /**
+     * In parallel mode the returned iterator is Closeable, and closes the resource when closed.
+     */
+    private <S> Iterator<CartographVector> transform(Iterator<S> source, Closeable resource, Transformer<S, CartographVector> transformer) {
+        if (numThreads <= 1) {
+            return new TransformIterator<S, CartographVector>(source, transformer);
+        } else {
+            return new ParallelTransformIterator<S, CartographVector>(
+                    source, transformer, numThreads, preserveOrder, resource);
         }
-        int itemId = Integer.valueOf(strId.substring(1));
-        if (!concept2Id.containsKey(itemId)) {
-            return null;
+    }
+
+    /**
+     * Returns the local page id for a Wikidata item, or -1 if the item
+     * has no page or the page is not one of the valid ids.
+     */
+    private int getPageId(int itemId) {
+        if (itemId < 0 || !concept2Id.containsKey(itemId)) {
+            return -1;
         }
         int pageId = concept2Id.get(itemId);
         if (validIds != null && !validIds.contains(pageId)) {
+            return -1;
+        }
+        return pageId;
+    }
+
+    protected CartographVector makeVector(String line) throws DaoException {
+        int itemId = parser.parseItemId(line);
+        int pageId = getPageId(itemId);
+        if (pageId < 0) {
             return null;
         }
-        LocalPage page = pageDao.getById(lang, pageId);
 
-        float v[] = new float[vectorLength];
-        for (int i = 0; i < vectorLength; i++) {
-            v[i] = Float.valueOf(tokens[i+1]);
+        float v[] = new float[parser.getDimensions()];
+        int n = parser.parseValues(line, v, 0);
+        if (n != v.length) {
+            LOG.warn("Invalid vector length for Q{}. Expected {}, found {}.",
+                    itemId, v.length, n);
+            return null;
+        }
+        return makeVector(pageId, v);
+    }
+
+    protected CartographVector makeVector(int pageId, float v[]) throws DaoException {
+        String title = pop.getTitle(pageId);
+        if (title == null) {
+            return null;
         }
         double pp = pop.getPopularity(pageId);
 
-        List<String> links = new ArrayList<String>();
-//        for (LocalLink ll : linkDao.getLinks(lang, pageId, true)) {
-//            links.add("" + ll.getLocalId());
-//        }
+        int links[] = (linkGraph == null) ? new int[0] : linkGraph.getLinks(pageId);
 
         return new CartographVector(
-                page.getTitle().getCanonicalTitle(),
-                "" + pageId,
-                links.toArray(new String[links.size()]),
+                title,
+                pageId,
+                links,
                 v,
                 pp);
     }
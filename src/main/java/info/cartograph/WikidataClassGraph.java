@@ -0,0 +1,142 @@
+package info.cartograph;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.TIntSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.wikidata.*;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * An in-memory snapshot of the Wikidata "subclass of" (P279) hierarchy.
+ *
+ * Every item that appears on either side of a subclass statement is a
+ * class. Classes are stored sorted in classIds, and the direct subclasses
+ * of classIds[i] are the class indexes subclasses[offsets[i]:offsets[i+1]].
+ * The snapshot is built with a single scan over the P279 statements.
+ *
+ * Reachability questions are answered with a reverse BFS from a set of
+ * target classes, which gives the number of subclass hops from every class
+ * to its nearest target.
+ *
+ * @author Shilad Sen
+ */
+public class WikidataClassGraph implements Serializable {
+    private static final Logger LOG = LoggerFactory.getLogger(WikidataClassGraph.class);
+    public static final int SUBCLASS_OF_ID = 279;
+
+    private final int[] classIds;
+    private final int[] offsets;
+    private final int[] subclasses;
+
+    private WikidataClassGraph(int[] classIds, int[] offsets, int[] subclasses) {
+        this.classIds = classIds;
+        this.offsets = offsets;
+        this.subclasses = subclasses;
+    }
+
+    public static WikidataClassGraph build(WikidataDao wdDao) throws DaoException {
+        LOG.info("Loading Wikidata subclass graph");
+        TIntList children = new TIntArrayList();
+        TIntList parents = new TIntArrayList();
+        WikidataFilter filter = new WikidataFilter.Builder()
+                .withEntityType(WikidataEntity.Type.ITEM)
+                .withPropertyId(SUBCLASS_OF_ID)
+                .build();
+        for (WikidataStatement st : wdDao.get(filter)) {
+            if (st.getValue() == null || st.getValue().getType() != WikidataValue.Type.ITEM) {
+                continue;
+            }
+            children.add(st.getItem().getId());
+            parents.add(st.getValue().getItemValue());
+        }
+
+        // Distinct classes, sorted
+        int sorted[] = new int[children.size() * 2];
+        children.toArray(sorted, 0, 0, children.size());
+        parents.toArray(sorted, 0, children.size(), parents.size());
+        Arrays.sort(sorted);
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        int classIds[] = Arrays.copyOf(sorted, n);
+        sorted = null;
+
+        // Counting sort of the statements by parent class
+        int offsets[] = new int[n + 1];
+        for (int i = 0; i < parents.size(); i++) {
+            offsets[Arrays.binarySearch(classIds, parents.get(i)) + 1]++;
+        }
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+        int next[] = Arrays.copyOf(offsets, n);
+        int subclasses[] = new int[parents.size()];
+        for (int i = 0; i < parents.size(); i++) {
+            int parent = Arrays.binarySearch(classIds, parents.get(i));
+            subclasses[next[parent]++] = Arrays.binarySearch(classIds, children.get(i));
+        }
+        LOG.info("Loaded Wikidata subclass graph with {} classes and {} subclass statements", n, subclasses.length);
+        return new WikidataClassGraph(classIds, offsets, subclasses);
+    }
+
+    /**
+     * Returns the index of a class, or -1 if the item never appears in a subclass statement.
+     */
+    public int indexOf(int classId) {
+        int i = Arrays.binarySearch(classIds, classId);
+        return (i < 0) ? -1 : i;
+    }
+
+    /**
+     * Returns the fewest subclass hops from each class index to one of the targets,
+     * or -1 for classes that do not reach a target within maxSteps hops.
+     */
+    public int[] getDistances(TIntSet targetIds, int maxSteps) {
+        int distances[] = new int[classIds.length];
+        Arrays.fill(distances, -1);
+        int queue[] = new int[classIds.length];
+        int head = 0, tail = 0;
+        for (int id : targetIds.toArray()) {
+            int i = indexOf(id);
+            if (i >= 0 && distances[i] < 0) {
+                distances[i] = 0;
+                queue[tail++] = i;
+            }
+        }
+        while (head < tail) {
+            int c = queue[head++];
+            if (distances[c] >= maxSteps) {
+                continue;
+            }
+            for (int j = offsets[c]; j < offsets[c + 1]; j++) {
+                int sub = subclasses[j];
+                if (distances[sub] < 0) {
+                    distances[sub] = distances[c] + 1;
+                    queue[tail++] = sub;
+                }
+            }
+        }
+        LOG.info("Found {} classes within {} steps of {} target classes", tail, maxSteps, targetIds.size());
+        return distances;
+    }
+
+    public int getClassId(int index) {
+        return classIds[index];
+    }
+
+    public int getNumClasses() {
+        return classIds.length;
+    }
+
+    public int getNumLinks() {
+        return subclasses.length;
+    }
+}